@@ -0,0 +1,189 @@
+package org.jenkinsci.plugins.quarantine;
+
+import hudson.Extension;
+import hudson.ExtensionList;
+import hudson.init.Terminator;
+import hudson.util.DaemonThreadFactory;
+import hudson.util.NamingThreadFactory;
+import org.jenkinsci.plugins.quarantine.QuarantineTestDataPublisher.Data;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Saves the quarantine state of builds in the background. Changes that come
+ * in bursts, like quarantining a number of tests one after the other, are
+ * written once the build has been left alone for a moment. The builds that
+ * still need to be written are kept in memory, so they cannot be unloaded
+ * before they are, and are all written when Jenkins shuts down. Builds saved
+ * after that are written right away.
+ */
+@Extension
+public class BuildSaver {
+
+   private static final Logger LOGGER = Logger.getLogger(BuildSaver.class.getName());
+
+   static long DELAY = Long.getLong(BuildSaver.class.getName() + ".delay", TimeUnit.SECONDS.toMillis(2));
+   static long MAX_DELAY = Long.getLong(BuildSaver.class.getName() + ".maxDelay", TimeUnit.SECONDS.toMillis(30));
+
+   private final Map<Data, Pending> pending = new LinkedHashMap<Data, Pending>();
+   private final ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(1,
+           new NamingThreadFactory(new DaemonThreadFactory(), "Quarantine build saver"));
+   private boolean closed;
+
+   private long changes;
+   private long writes;
+   private long lastLatency;
+   private long maxLatency;
+
+   public BuildSaver() {
+      // whatever is waiting is flushed on shutdown
+      executor.setExecuteExistingDelayedTasksAfterShutdownPolicy(false);
+   }
+
+   public static BuildSaver get() {
+      return ExtensionList.lookup(BuildSaver.class).get(0);
+   }
+
+   @Terminator
+   public static void shutdown() throws InterruptedException {
+      for (BuildSaver saver : ExtensionList.lookup(BuildSaver.class)) {
+         saver.close();
+      }
+   }
+
+   private void close() throws InterruptedException {
+      synchronized (this) {
+         closed = true;
+      }
+      executor.shutdown();
+      // lets a write that is under way finish first
+      executor.awaitTermination(10, TimeUnit.SECONDS);
+      flush();
+   }
+
+   /**
+    * Saves the build a little later
+    */
+   public void save(Data data) {
+      synchronized (this) {
+         changes++;
+         if (!closed) {
+            long now = System.currentTimeMillis();
+            Pending p = pending.get(data);
+            if (p == null) {
+               pending.put(data, new Pending(now));
+            } else {
+               p.lastChange = now;
+            }
+            schedule(DELAY);
+            return;
+         }
+      }
+      // nothing is left to write it later
+      write(Collections.singletonList(data));
+   }
+
+   /**
+    * Saves all builds that are waiting to be saved right away
+    */
+   public void flush() {
+      write(claim(Long.MAX_VALUE));
+   }
+
+   private void schedule(long delayMillis) {
+      if (executor.isShutdown()) {
+         return;
+      }
+      executor.schedule(new Runnable() {
+         public void run() {
+            write(claim(System.currentTimeMillis()));
+         }
+      }, delayMillis, TimeUnit.MILLISECONDS);
+   }
+
+   /**
+    * Takes the builds that have been left alone for long enough, or have been
+    * waiting for too long
+    */
+   private synchronized List<Data> claim(long now) {
+      List<Data> due = new ArrayList<Data>();
+      for (Map.Entry<Data, Pending> entry : pending.entrySet()) {
+         Pending p = entry.getValue();
+         if (now == Long.MAX_VALUE || now - p.lastChange >= DELAY || now - p.firstChange >= MAX_DELAY) {
+            due.add(entry.getKey());
+            long latency = Math.max(0, Math.min(now, System.currentTimeMillis()) - p.firstChange);
+            lastLatency = latency;
+            maxLatency = Math.max(maxLatency, latency);
+         }
+      }
+      pending.keySet().removeAll(due);
+      return due;
+   }
+
+   private void write(List<Data> due) {
+      for (Data data : due) {
+         try {
+            // written to a temporary file first, so it's never half written
+            data.write();
+            synchronized (this) {
+               writes++;
+            }
+         } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "failed to save quarantine state of " + data.getBuild(), e);
+         }
+      }
+      if (!due.isEmpty()) {
+         LOGGER.fine(this.toString());
+      }
+   }
+
+   public synchronized int getPendingCount() {
+      return pending.size();
+   }
+
+   /**
+    * The number of changes handed over for each build actually written
+    */
+   public synchronized double getCoalescingRatio() {
+      return writes > 0 ? (double) changes / writes : 0;
+   }
+
+   /**
+    * How long the last build written was waiting, in milliseconds
+    */
+   public synchronized long getLastLatency() {
+      return lastLatency;
+   }
+
+   /**
+    * The longest any build has been waiting to be written, in milliseconds
+    */
+   public synchronized long getMaxLatency() {
+      return maxLatency;
+   }
+
+   @Override
+   public synchronized String toString() {
+      return "BuildSaver(pending=" + pending.size() + ",changes=" + changes + ",writes=" + writes
+            + ",lastLatency=" + lastLatency + "ms,maxLatency=" + maxLatency + "ms)";
+   }
+
+   private static class Pending {
+      final long firstChange;
+      long lastChange;
+
+      Pending(long now) {
+         firstChange = now;
+         lastChange = now;
+      }
+   }
+}
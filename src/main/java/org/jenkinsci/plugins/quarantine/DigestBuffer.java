@@ -0,0 +1,203 @@
+package org.jenkinsci.plugins.quarantine;
+
+import hudson.Extension;
+import hudson.ExtensionList;
+import hudson.model.AsyncPeriodicWork;
+import hudson.model.TaskListener;
+import hudson.tasks.junit.CaseResult;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Collects the failures of quarantined tests from all jobs per user when the
+ * digest mode is enabled, so that each user gets a single email per digest
+ * interval rather than one per failing build. The buffer is kept in
+ * quarantine-digest.xml until the digest has been sent.
+ */
+@Extension
+public class DigestBuffer extends PersistedState {
+
+   private static final String FILE_NAME = "quarantine-digest.xml";
+
+   // user -> job and test id -> failures
+   private Map<String, Map<String, Entry>> entries = new LinkedHashMap<String, Map<String, Entry>>();
+   private long lastSent = System.currentTimeMillis();
+
+   public DigestBuffer() {
+      super(FILE_NAME);
+      if (!load()) {
+         entries = new LinkedHashMap<String, Map<String, Entry>>();
+      }
+   }
+
+   public static DigestBuffer get() {
+      return ExtensionList.lookup(DigestBuffer.class).get(0);
+   }
+
+   public synchronized void add(String username, List<ResultActionPair> results) {
+      Map<String, Entry> failures = entries.get(username);
+      if (failures == null) {
+         failures = new LinkedHashMap<String, Entry>();
+         entries.put(username, failures);
+      }
+      for (ResultActionPair pair : results) {
+         CaseResult result = pair.getResult();
+         String key = result.getOwner().getParent().getFullName() + "/" + result.getId();
+         // replaced rather than changed, so a digest that is being sent
+         // still has the entries it was rendered from
+         Entry entry = failures.get(key);
+         entry = entry != null ? new Entry(entry) : new Entry(result, pair.getAction());
+         entry.failed(result);
+         failures.put(key, entry);
+      }
+      saveQuietly();
+   }
+
+   public synchronized int getPendingCount(String username) {
+      Map<String, Entry> failures = entries.get(username);
+      return failures != null ? failures.size() : 0;
+   }
+
+   synchronized boolean isDue(long intervalMillis) {
+      return System.currentTimeMillis() - lastSent >= intervalMillis;
+   }
+
+   /**
+    * Sends everything collected since the last digest. Failures stay in the
+    * buffer until the digest they are in has been queued, so a user whose
+    * digest could not be sent gets them with the next one.
+    */
+   void send(TaskListener listener) {
+      Map<String, List<Entry>> digests = new LinkedHashMap<String, List<Entry>>();
+      synchronized (this) {
+         for (Map.Entry<String, Map<String, Entry>> user : entries.entrySet()) {
+            digests.put(user.getKey(), new ArrayList<Entry>(user.getValue().values()));
+         }
+         lastSent = System.currentTimeMillis();
+      }
+      List<String> sent = new MailNotifier(listener).sendDigests(digests);
+      synchronized (this) {
+         for (String username : sent) {
+            Map<String, Entry> failures = entries.get(username);
+            if (failures != null) {
+               // tests that failed again since are in the next digest
+               failures.values().removeAll(digests.get(username));
+               if (failures.isEmpty()) {
+                  entries.remove(username);
+               }
+            }
+         }
+         saveQuietly();
+      }
+   }
+
+   /**
+    * The failures of one quarantined test since the last digest. This needs to
+    * be public as it is passed to the script that renders the digest.
+    */
+   public static class Entry {
+      private final String jobName;
+      private final String jobUrl;
+      private final String testName;
+      private final String testUrl;
+      private final String reason;
+      private final Date quarantineDate;
+      private int count;
+      private Date lastFailure;
+      private String errorDetails;
+
+      Entry(CaseResult result, QuarantineTestAction action) {
+         this.jobName = result.getOwner().getParent().getDisplayName();
+         this.jobUrl = result.getOwner().getParent().getUrl();
+         this.testName = result.getFullName();
+         this.testUrl = result.getUrl();
+         this.reason = action.getReason();
+         this.quarantineDate = action.getDate();
+      }
+
+      private Entry(Entry entry) {
+         this.jobName = entry.jobName;
+         this.jobUrl = entry.jobUrl;
+         this.testName = entry.testName;
+         this.testUrl = entry.testUrl;
+         this.reason = entry.reason;
+         this.quarantineDate = entry.quarantineDate;
+         this.count = entry.count;
+         this.lastFailure = entry.lastFailure;
+         this.errorDetails = entry.errorDetails;
+      }
+
+      void failed(CaseResult result) {
+         count++;
+         lastFailure = result.getOwner().getTime();
+         errorDetails = result.getErrorDetails();
+      }
+
+      public String getJobName() {
+         return jobName;
+      }
+
+      public String getJobUrl() {
+         return jobUrl;
+      }
+
+      public String getTestName() {
+         return testName;
+      }
+
+      public String getTestUrl() {
+         return testUrl;
+      }
+
+      public String getReason() {
+         return reason;
+      }
+
+      public Date getQuarantineDate() {
+         return quarantineDate;
+      }
+
+      public int getCount() {
+         return count;
+      }
+
+      public Date getLastFailure() {
+         return lastFailure;
+      }
+
+      public String getErrorDetails() {
+         return errorDetails;
+      }
+   }
+
+   /**
+    * Sends the digests once the configured interval has passed.
+    */
+   @Extension
+   public static class Sender extends AsyncPeriodicWork {
+
+      public Sender() {
+         super("Quarantine digest");
+      }
+
+      @Override
+      public long getRecurrencePeriod() {
+         return MIN;
+      }
+
+      @Override
+      protected void execute(TaskListener listener) {
+         QuarantineConfiguration config = QuarantineConfiguration.get();
+         DigestBuffer buffer = DigestBuffer.get();
+         if (!config.isDigest() || !buffer.isDue(TimeUnit.MINUTES.toMillis(config.getDigestInterval()))) {
+            return;
+         }
+         buffer.send(listener);
+      }
+   }
+}
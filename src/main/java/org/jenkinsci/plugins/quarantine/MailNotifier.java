@@ -2,22 +2,15 @@ package org.jenkinsci.plugins.quarantine;
 
 import hudson.model.Hudson;
 import hudson.model.TaskListener;
-import hudson.model.User;
-import hudson.tasks.Mailer;
 import hudson.tasks.junit.CaseResult;
 
 import java.io.*;
 import java.util.ArrayList;
-import java.util.Date;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
-
-import javax.mail.Message;
-import javax.mail.MessagingException;
-import javax.mail.Transport;
-import javax.mail.internet.InternetAddress;
-import javax.mail.internet.MimeMessage;
+import java.util.concurrent.TimeUnit;
 
 import org.apache.commons.jelly.JellyContext;
 import org.apache.commons.jelly.JellyException;
@@ -25,11 +18,14 @@ import org.apache.commons.jelly.Script;
 import org.apache.commons.jelly.XMLOutput;
 import org.xml.sax.InputSource;
 
-import jenkins.model.JenkinsLocationConfiguration;
-
 
 public class MailNotifier {
 
+   static final String TEMPLATE = "MailNotifier/message.jelly";
+   static final String DIGEST_TEMPLATE = "MailNotifier/digest.jelly";
+
+   private static final Map<String, Script> templates = new HashMap<String, Script>();
+
    HashMap<String, List<ResultActionPair>> emailsToSend = new HashMap<String, List<ResultActionPair>>();
    PrintStream logger;
 
@@ -53,42 +49,99 @@ public class MailNotifier {
    }
 
    public String getEmailAddress(String username) {
-      String address = null;
-      User u = User.get(username);
-      Mailer.UserProperty p = u.getProperty(Mailer.UserProperty.class);
-      if (p == null) {
+      String address = UserDetailsCache.getEmailAddress(username);
+      if (address == null) {
          println("failed obtaining email address for user " + username);
-         return address;
       }
+      return address;
+   }
 
-      if (p.getAddress() == null) {
-         println("failed obtaining email address (is null) for user " + username);
-         return address;
+   public void sendEmails() {
+      if (QuarantineConfiguration.get().isDigest()) {
+         DigestBuffer digest = DigestBuffer.get();
+         for (Map.Entry<String, List<ResultActionPair>> entry : emailsToSend.entrySet()) {
+            digest.add(entry.getKey(), entry.getValue());
+            println("[Quarantine]: added " + entry.getValue().size() + " failures to the digest for " + entry.getKey());
+         }
+         return;
       }
 
-      return p.getAddress();
+      QuarantineConfiguration config = QuarantineConfiguration.get();
+      NotificationState state = NotificationState.get();
+      long window = TimeUnit.HOURS.toMillis(config.getNotificationWindow());
+      List<MailQueue.PendingMail> mails = new ArrayList<MailQueue.PendingMail>();
+      List<String> usernames = new ArrayList<String>();
+      List<List<String>> notifiedTests = new ArrayList<List<String>>();
+      for (Map.Entry<String, List<ResultActionPair>> entry : emailsToSend.entrySet()) {
+         String username = entry.getKey();
+         List<ResultActionPair> results = new ArrayList<ResultActionPair>();
+         List<String> tests = new ArrayList<String>();
+         for (ResultActionPair pair : entry.getValue()) {
+            String test = pair.getResult().getOwner().getParent().getFullName() + "/" + pair.getResult().getId();
+            if (window > 0 && state.isSuppressed(username, test, window)) {
+               continue;
+            }
+            results.add(pair);
+            tests.add(test);
+         }
+         if (results.isEmpty()) {
+            println("[Quarantine]: " + username + " has already been notified about these failures");
+            continue;
+         }
+         if (!state.mayEmail(username, config.getMaxEmailsPerHour())) {
+            println("[Quarantine]: " + username + " has reached the limit of emails per hour");
+            continue;
+         }
+         MailQueue.PendingMail mail = createEmail(username, results);
+         if (mail != null) {
+            mails.add(mail);
+            usernames.add(username);
+            notifiedTests.add(tests);
+         }
+      }
+      int accepted = queue(mails);
+      // a dropped email hasn't told anyone anything
+      for (int i = 0; i < accepted; i++) {
+         state.notified(usernames.get(i), notifiedTests.get(i));
+      }
    }
 
-   public void sendEmails() {
-      for (Map.Entry<String, List<ResultActionPair>> entry : emailsToSend.entrySet()) {
-         sendEmail(entry.getKey(), entry.getValue());
+   /**
+    * Compiling a jelly script is much more expensive than running it, so each
+    * template is compiled only once. Compiled scripts keep no state between
+    * runs; every render gets its own context.
+    */
+   static Script getTemplate(String name) throws JellyException, IOException {
+      synchronized (templates) {
+         Script script = templates.get(name);
+         if (script == null) {
+            InputStream template = MailNotifier.class.getResourceAsStream(name);
+            try {
+               script = new JellyContext().compileScript(new InputSource(template));
+            } finally {
+               template.close();
+            }
+            if (script != null) {
+               templates.put(name, script);
+            }
+         }
+         return script;
       }
    }
 
-   private String renderEmail(String username, List<ResultActionPair> results) throws UnsupportedEncodingException {
+   String renderEmail(String template, Map<String, Object> variables) throws UnsupportedEncodingException {
       ByteArrayOutputStream output;
       try {
-         Script script;
-         JellyContext ctx = new JellyContext();
-         ctx.setVariable("user", username);
-         ctx.setVariable("results", results);
-         ctx.setVariable("rootURL", Hudson.getInstance().getRootUrl());
-         InputStream template = getClass().getResourceAsStream("MailNotifier/message.jelly");
-         script = ctx.compileScript(new InputSource(template));
+         Script script = getTemplate(template);
          if (script == null) {
             println("[Quarantine]: failed compiling jelly script");
             return null;
          }
+         JellyContext ctx = new JellyContext();
+         for (Map.Entry<String, Object> variable : variables.entrySet()) {
+            ctx.setVariable(variable.getKey(), variable.getValue());
+         }
+         ctx.setVariable("rootURL", Hudson.getInstance().getRootUrl());
          output = new ByteArrayOutputStream(16 * 1024);
          XMLOutput xmlOutput = XMLOutput.createXMLOutput(output);
          script.run(ctx, xmlOutput);
@@ -106,40 +159,82 @@ public class MailNotifier {
    }
 
    public void sendEmail(String username, List<ResultActionPair> results) {
+      MailQueue.PendingMail mail = createEmail(username, results);
+      if (mail != null) {
+         queue(Collections.singletonList(mail));
+      }
+   }
+
+   private MailQueue.PendingMail createEmail(String username, List<ResultActionPair> results) {
+      Map<String, Object> variables = new HashMap<String, Object>();
+      variables.put("user", username);
+      variables.put("results", results);
+      return createEmail(username, "Failure of quarantined tests", TEMPLATE, variables);
+   }
+
+   private MailQueue.PendingMail createEmail(String username, String subject, String template,
+                                             Map<String, Object> variables) {
       String address = getEmailAddress(username);
       if (address == null) {
-         return;
+         return null;
       }
 
-      MimeMessage msg = new MimeMessage(Mailer.descriptor().createSession());
       try {
-
-         JenkinsLocationConfiguration config = JenkinsLocationConfiguration.get();
-         if (config == null) {
-            println("[Quarantine]: unable to render message due to a null configuration to obtain the admin address.");
-            return;
-         }
-
-         msg.setFrom(new InternetAddress(config.getAdminAddress()));
-         msg.setSentDate(new Date());
-         msg.setRecipients(Message.RecipientType.TO, address);
-         msg.setSubject("Failure of quarantined tests");
-
-         String message = renderEmail(username, results);
+         String message = renderEmail(template, variables);
          if (message == null) {
             println("[Quarantine]: unable to render message");
-            return;
+            return null;
          }
-         msg.setContent(message, "text/html");
-
-         Transport.send(msg);
-
-         println("[Quarantine]: sent email to " + address);
-      } catch (MessagingException e) {
-         println("[Quarantine]: failed sending email: " + e.toString());
+         return new MailQueue.PendingMail(address, subject, message);
       } catch (UnsupportedEncodingException e) {
          e.printStackTrace();
+         return null;
+      }
+   }
+
+   /**
+    * Sends each user a single email with the failures collected by the
+    * {@link DigestBuffer}.
+    *
+    * @return the users whose digest has been queued
+    */
+   public List<String> sendDigests(Map<String, List<DigestBuffer.Entry>> digests) {
+      List<MailQueue.PendingMail> mails = new ArrayList<MailQueue.PendingMail>();
+      List<String> usernames = new ArrayList<String>();
+      for (Map.Entry<String, List<DigestBuffer.Entry>> digest : digests.entrySet()) {
+         Map<String, Object> variables = new HashMap<String, Object>();
+         variables.put("user", digest.getKey());
+         variables.put("entries", digest.getValue());
+         MailQueue.PendingMail mail = createEmail(digest.getKey(), "Digest of failing quarantined tests",
+                 DIGEST_TEMPLATE, variables);
+         if (mail != null) {
+            mails.add(mail);
+            usernames.add(digest.getKey());
+         } else {
+            println("[Quarantine]: keeping the digest for " + digest.getKey() + " until it can be sent");
+         }
+      }
+      return usernames.subList(0, queue(mails));
+   }
+
+   /**
+    * @return how many of the emails, from the start of the list, were queued
+    */
+   private int queue(List<MailQueue.PendingMail> mails) {
+      if (mails.isEmpty()) {
+         return 0;
+      }
+      MailQueue queue = MailQueue.get();
+      int accepted = queue.addAll(mails);
+      // the queue takes emails in order until it is full
+      for (MailQueue.PendingMail mail : mails.subList(0, accepted)) {
+         println("[Quarantine]: queued email to " + mail.getAddress());
+      }
+      if (accepted < mails.size()) {
+         println("[Quarantine]: mail queue is full, dropped " + (mails.size() - accepted) + " emails");
       }
+      println("[Quarantine]: " + queue.getPendingCount() + " emails pending");
+      return accepted;
    }
 
 }
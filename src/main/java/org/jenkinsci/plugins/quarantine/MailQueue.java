@@ -0,0 +1,389 @@
+package org.jenkinsci.plugins.quarantine;
+
+import hudson.Extension;
+import hudson.ExtensionList;
+import hudson.XmlFile;
+import hudson.init.InitMilestone;
+import hudson.init.Initializer;
+import hudson.init.Terminator;
+import hudson.tasks.Mailer;
+import hudson.util.DaemonThreadFactory;
+import hudson.util.NamingThreadFactory;
+import jenkins.model.Jenkins;
+import jenkins.model.JenkinsLocationConfiguration;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.mail.Message;
+import javax.mail.MessagingException;
+import javax.mail.SendFailedException;
+import javax.mail.Session;
+import javax.mail.Transport;
+import javax.mail.internet.InternetAddress;
+import javax.mail.internet.MimeMessage;
+
+/**
+ * Delivers the quarantine emails in the background, so a slow mail server
+ * does not hold up the build that found the failures. Emails that could not
+ * be sent are retried with an increasing delay. Each email that is waiting
+ * is kept in a file of its own in the quarantine-mail-queue directory, so it
+ * survives a restart without the others being written again.
+ */
+@Extension
+public class MailQueue {
+
+   private static final Logger LOGGER = Logger.getLogger(MailQueue.class.getName());
+   private static final String DIRECTORY_NAME = "quarantine-mail-queue";
+
+   static int CAPACITY = Integer.getInteger(MailQueue.class.getName() + ".capacity", 1000);
+   static int WORKERS = Integer.getInteger(MailQueue.class.getName() + ".workers", 2);
+   static int MAX_ATTEMPTS = Integer.getInteger(MailQueue.class.getName() + ".maxAttempts", 5);
+   static long RETRY_DELAY = Long.getLong(MailQueue.class.getName() + ".retryDelay", TimeUnit.SECONDS.toMillis(30));
+
+   private final List<PendingMail> pending = new ArrayList<PendingMail>();
+
+   private final File directory;
+   private final AtomicLong lastId;
+   private final ScheduledThreadPoolExecutor executor;
+
+   public MailQueue() {
+      directory = new File(Jenkins.getActiveInstance().getRootDir(), DIRECTORY_NAME);
+      long last = System.currentTimeMillis();
+      File[] files = directory.listFiles();
+      for (File file : files != null ? files : new File[0]) {
+         if (!file.getName().endsWith(".xml")) {
+            continue;
+         }
+         try {
+            PendingMail mail = (PendingMail) new XmlFile(Jenkins.XSTREAM2, file).read();
+            mail.id = Long.parseLong(file.getName().substring(0, file.getName().indexOf('.')));
+            mail.stored = true;
+            pending.add(mail);
+            last = Math.max(last, mail.id);
+         } catch (IOException | RuntimeException e) {
+            LOGGER.log(Level.WARNING, "failed to load " + file, e);
+         }
+      }
+      Collections.sort(pending, new Comparator<PendingMail>() {
+         public int compare(PendingMail a, PendingMail b) {
+            return Long.compare(a.id, b.id);
+         }
+      });
+      lastId = new AtomicLong(last);
+      executor = new ScheduledThreadPoolExecutor(WORKERS,
+              new NamingThreadFactory(new DaemonThreadFactory(), "Quarantine mail delivery"));
+      // emails waiting for a retry are on disk, no need to wait for them on shutdown
+      executor.setExecuteExistingDelayedTasksAfterShutdownPolicy(false);
+   }
+
+   public static MailQueue get() {
+      return ExtensionList.lookup(MailQueue.class).get(0);
+   }
+
+   @Initializer(after = InitMilestone.JOB_LOADED)
+   public static void resume() {
+      MailQueue queue = get();
+      synchronized (queue) {
+         // a restart is often how the mail settings get fixed, so emails
+         // waiting for a retry are tried again right away
+         for (PendingMail mail : queue.pending) {
+            mail.notBefore = 0;
+         }
+         if (!queue.pending.isEmpty()) {
+            LOGGER.info("resuming delivery of " + queue.pending.size() + " quarantine emails");
+            queue.schedule(0);
+         }
+      }
+   }
+
+   @Terminator
+   public static void shutdown() throws InterruptedException {
+      for (MailQueue queue : ExtensionList.lookup(MailQueue.class)) {
+         // lets the emails being sent finish, and writes the ones that did
+         // not get written yet
+         queue.executor.shutdown();
+         queue.executor.awaitTermination(10, TimeUnit.SECONDS);
+         for (PendingMail mail : queue.getPending()) {
+            if (!mail.stored) {
+               queue.store(mail);
+            }
+         }
+      }
+   }
+
+   /**
+    * Hands emails over for delivery. Emails handed over together are sent over
+    * the same connection.
+    *
+    * @return how many of the emails were accepted, the rest have been dropped
+    *         because the queue is full
+    */
+   public int addAll(List<PendingMail> mails) {
+      final List<PendingMail> accepted = new ArrayList<PendingMail>();
+      synchronized (this) {
+         for (PendingMail mail : mails) {
+            if (pending.size() >= CAPACITY) {
+               LOGGER.warning("quarantine mail queue is full, dropping email to " + mail.address);
+               continue;
+            }
+            mail.id = lastId.incrementAndGet();
+            pending.add(mail);
+            accepted.add(mail);
+         }
+      }
+      if (!accepted.isEmpty()) {
+         // written by a worker, the build only hands the emails over
+         submit(new Runnable() {
+            public void run() {
+               for (PendingMail mail : accepted) {
+                  store(mail);
+               }
+            }
+         }, 0);
+         schedule(0);
+      }
+      return accepted.size();
+   }
+
+   public synchronized int getPendingCount() {
+      return pending.size();
+   }
+
+   synchronized List<PendingMail> getPending() {
+      return new ArrayList<PendingMail>(pending);
+   }
+
+   /**
+    * Waits until every email has either been sent or given up on.
+    *
+    * @return whether the queue is empty
+    */
+   synchronized boolean waitUntilEmpty(long timeoutMillis) throws InterruptedException {
+      long deadline = System.currentTimeMillis() + timeoutMillis;
+      while (!pending.isEmpty()) {
+         long remaining = deadline - System.currentTimeMillis();
+         if (remaining <= 0) {
+            return false;
+         }
+         wait(remaining);
+      }
+      return true;
+   }
+
+   private void schedule(long delayMillis) {
+      submit(new Runnable() {
+         public void run() {
+            deliver();
+         }
+      }, delayMillis);
+   }
+
+   private void submit(Runnable task, long delayMillis) {
+      try {
+         executor.schedule(task, delayMillis, TimeUnit.MILLISECONDS);
+      } catch (RejectedExecutionException e) {
+         // shutting down, emails that were not written yet are written then
+         LOGGER.log(Level.FINE, "not delivering quarantine emails while shutting down", e);
+      }
+   }
+
+   private synchronized List<PendingMail> claimDue() {
+      List<PendingMail> due = new ArrayList<PendingMail>();
+      long now = System.currentTimeMillis();
+      for (PendingMail mail : pending) {
+         if (!mail.inFlight && mail.notBefore <= now) {
+            mail.inFlight = true;
+            due.add(mail);
+         }
+      }
+      return due;
+   }
+
+   private void deliver() {
+      List<PendingMail> due = claimDue();
+      if (due.isEmpty()) {
+         return;
+      }
+
+      // javax.mail looks its providers up through the context class loader
+      Thread thread = Thread.currentThread();
+      ClassLoader contextClassLoader = thread.getContextClassLoader();
+      thread.setContextClassLoader(MailQueue.class.getClassLoader());
+      List<PendingMail> unsent = new ArrayList<PendingMail>(due);
+      Connection connection = null;
+      try {
+         connection = new Connection();
+         for (PendingMail mail : due) {
+            try {
+               connection.send(createMessage(connection.session, mail));
+               LOGGER.fine("sent quarantine email to " + mail.address);
+               unsent.remove(mail);
+               done(mail);
+            } catch (MessagingException e) {
+               unsent.remove(mail);
+               failed(mail, e);
+            } catch (RuntimeException e) {
+               // e.g. no admin address configured
+               unsent.remove(mail);
+               failed(mail, e);
+            }
+         }
+      } finally {
+         if (connection != null) {
+            connection.close();
+         }
+         thread.setContextClassLoader(contextClassLoader);
+         // whatever wasn't tried, e.g. because there was no mail session, is
+         // tried again later
+         for (PendingMail mail : unsent) {
+            failed(mail, new MessagingException("not sent"));
+         }
+      }
+   }
+
+   private MimeMessage createMessage(Session session, PendingMail mail) throws MessagingException {
+      JenkinsLocationConfiguration config = JenkinsLocationConfiguration.get();
+      if (config == null) {
+         throw new MessagingException("no configuration to obtain the admin address from");
+      }
+      MimeMessage msg = new MimeMessage(session);
+      msg.setFrom(new InternetAddress(config.getAdminAddress()));
+      msg.setSentDate(new Date());
+      msg.setRecipients(Message.RecipientType.TO, mail.address);
+      msg.setSubject(mail.subject);
+      msg.setContent(mail.content, "text/html");
+      return msg;
+   }
+
+   /**
+    * A single SMTP connection shared by all the emails of one delivery run.
+    * With TLS and authentication, setting up the connection costs more than
+    * sending an email over it.
+    */
+   private static class Connection {
+      private final Session session = Mailer.descriptor().createSession();
+      private Transport transport;
+
+      void send(MimeMessage msg) throws MessagingException {
+         msg.saveChanges();
+         if (transport != null) {
+            try {
+               transport.sendMessage(msg, msg.getAllRecipients());
+               return;
+            } catch (SendFailedException e) {
+               // the connection is fine, it's the recipients that aren't
+               throw e;
+            } catch (MessagingException e) {
+               LOGGER.log(Level.FINE, "failed sending over open connection, reconnecting", e);
+               close();
+            }
+         }
+         // only kept once connected, so a failed connect is tried again for
+         // the next email
+         Transport connected = session.getTransport("smtp");
+         connected.connect();
+         transport = connected;
+         transport.sendMessage(msg, msg.getAllRecipients());
+      }
+
+      void close() {
+         if (transport != null) {
+            try {
+               transport.close();
+            } catch (MessagingException e) {
+               LOGGER.log(Level.FINE, "failed closing connection", e);
+            }
+            transport = null;
+         }
+      }
+   }
+
+   private void done(PendingMail mail) {
+      synchronized (this) {
+         pending.remove(mail);
+         mail.done = true;
+         notifyAll();
+      }
+      store(mail);
+   }
+
+   private void failed(PendingMail mail, Exception e) {
+      long delay;
+      synchronized (this) {
+         mail.inFlight = false;
+         mail.attempts++;
+         delay = RETRY_DELAY << (mail.attempts - 1);
+         mail.notBefore = System.currentTimeMillis() + delay;
+      }
+      if (mail.attempts >= MAX_ATTEMPTS) {
+         LOGGER.log(Level.WARNING, "giving up sending quarantine email to " + mail.address + " after "
+                 + mail.attempts + " attempts", e);
+         done(mail);
+         return;
+      }
+      LOGGER.log(Level.INFO, "failed sending quarantine email to " + mail.address + ", retrying in "
+              + TimeUnit.MILLISECONDS.toSeconds(delay) + "s: " + e);
+      store(mail);
+      schedule(delay);
+   }
+
+   /**
+    * Writes the file of a single email, or deletes it once the email is done
+    * with. Never called with the queue locked.
+    */
+   private void store(PendingMail mail) {
+      XmlFile file = new XmlFile(Jenkins.XSTREAM2, new File(directory, mail.id + ".xml"));
+      synchronized (mail) {
+         try {
+            if (mail.done) {
+               Files.deleteIfExists(file.getFile().toPath());
+            } else {
+               file.write(mail);
+               mail.stored = true;
+            }
+         } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "failed to save " + file, e);
+         }
+      }
+   }
+
+   public static class PendingMail {
+      private final String address;
+      private final String subject;
+      private final String content;
+      private int attempts;
+      private long notBefore;
+      // the name of its file
+      private transient long id;
+      private transient boolean inFlight;
+      private transient boolean stored;
+      private transient volatile boolean done;
+
+      public PendingMail(String address, String subject, String content) {
+         this.address = address;
+         this.subject = subject;
+         this.content = content;
+      }
+
+      public String getAddress() {
+         return address;
+      }
+
+      public int getAttempts() {
+         return attempts;
+      }
+   }
+}
@@ -0,0 +1,113 @@
+package org.jenkinsci.plugins.quarantine;
+
+import hudson.Extension;
+import hudson.ExtensionList;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Remembers who has been told about which failing quarantined test, and how
+ * many emails each user got recently, so that repeated failures of a test
+ * that is known to be broken don't flood its owner's inbox. Kept in
+ * quarantine-notifications.xml.
+ */
+@Extension
+public class NotificationState extends PersistedState {
+
+   private static final String FILE_NAME = "quarantine-notifications.xml";
+   private static final long HOUR = TimeUnit.HOURS.toMillis(1);
+
+   // user and test -> when the user was last told about the test failing
+   private Map<String, Long> lastNotified = new HashMap<String, Long>();
+   // user -> when the user was sent an email in the last hour
+   private Map<String, List<Long>> emailsSent = new HashMap<String, List<Long>>();
+
+   public NotificationState() {
+      super(FILE_NAME);
+      if (!load()) {
+         lastNotified = new HashMap<String, Long>();
+         emailsSent = new HashMap<String, List<Long>>();
+      }
+   }
+
+   public static NotificationState get() {
+      return ExtensionList.lookup(NotificationState.class).get(0);
+   }
+
+   private static String key(String username, String test) {
+      return username + ":" + test;
+   }
+
+   /**
+    * Whether the user has already been told about the test within the window
+    */
+   public synchronized boolean isSuppressed(String username, String test, long windowMillis) {
+      Long last = lastNotified.get(key(username, test));
+      return last != null && System.currentTimeMillis() - last < windowMillis;
+   }
+
+   /**
+    * Whether the user may get another email without exceeding the limit per
+    * hour; 0 means no limit
+    */
+   public synchronized boolean mayEmail(String username, int maxPerHour) {
+      if (maxPerHour <= 0) {
+         return true;
+      }
+      List<Long> sent = emailsSent.get(username);
+      return sent == null || recent(sent).size() < maxPerHour;
+   }
+
+   public synchronized void notified(String username, List<String> tests) {
+      long now = System.currentTimeMillis();
+      for (String test : tests) {
+         lastNotified.put(key(username, test), now);
+      }
+      List<Long> sent = emailsSent.get(username);
+      if (sent == null) {
+         sent = new ArrayList<Long>();
+         emailsSent.put(username, sent);
+      }
+      recent(sent).add(now);
+      saveQuietly();
+   }
+
+   private static List<Long> recent(List<Long> sent) {
+      long since = System.currentTimeMillis() - HOUR;
+      for (Iterator<Long> it = sent.iterator(); it.hasNext();) {
+         if (it.next() < since) {
+            it.remove();
+         }
+      }
+      return sent;
+   }
+
+   /**
+    * Forgets everything that no longer matters for a window of the given length
+    */
+   private void prune(long windowMillis) {
+      long since = System.currentTimeMillis() - Math.max(windowMillis, HOUR);
+      for (Iterator<Long> it = lastNotified.values().iterator(); it.hasNext();) {
+         if (it.next() < since) {
+            it.remove();
+         }
+      }
+      for (Iterator<List<Long>> it = emailsSent.values().iterator(); it.hasNext();) {
+         if (recent(it.next()).isEmpty()) {
+            it.remove();
+         }
+      }
+   }
+
+   @Override
+   public synchronized void save() throws IOException {
+      prune(TimeUnit.HOURS.toMillis(QuarantineConfiguration.get().getNotificationWindow()));
+      super.save();
+   }
+}
@@ -0,0 +1,61 @@
+package org.jenkinsci.plugins.quarantine;
+
+import hudson.BulkChange;
+import hudson.XmlFile;
+import hudson.model.Saveable;
+import hudson.model.listeners.SaveableListener;
+import jenkins.model.Jenkins;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * State of the plugin that is kept in a file of its own in the Jenkins home
+ * directory. Like a {@link jenkins.model.GlobalConfiguration}, a subclass
+ * calls {@link #load()} from its constructor.
+ */
+abstract class PersistedState implements Saveable {
+
+   private static final Logger LOGGER = Logger.getLogger(PersistedState.class.getName());
+
+   private final transient XmlFile file;
+
+   PersistedState(String fileName) {
+      file = new XmlFile(Jenkins.XSTREAM2, new File(Jenkins.getActiveInstance().getRootDir(), fileName));
+   }
+
+   /**
+    * @return false if the file could not be read, which may leave the state
+    *         partly loaded
+    */
+   protected synchronized boolean load() {
+      if (!file.exists()) {
+         return true;
+      }
+      try {
+         file.unmarshal(this);
+         return true;
+      } catch (IOException e) {
+         LOGGER.log(Level.WARNING, "failed to load " + file, e);
+         return false;
+      }
+   }
+
+   public synchronized void save() throws IOException {
+      if (BulkChange.contains(this)) {
+         return;
+      }
+      file.write(this);
+      SaveableListener.fireOnChange(this, file);
+   }
+
+   protected void saveQuietly() {
+      try {
+         save();
+      } catch (IOException e) {
+         LOGGER.log(Level.WARNING, "failed to save " + file, e);
+      }
+   }
+}
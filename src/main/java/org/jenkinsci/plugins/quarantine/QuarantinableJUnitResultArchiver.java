@@ -51,61 +51,67 @@ public class QuarantinableJUnitResultArchiver extends JUnitResultArchiver {
 		// ideally, we'd use parse() here, but it's been made private... :-(
 		TestResult result = new JUnitParser(isKeepLongStdio()).parseResult(testResults, build, workspace, launcher, listener);
 
-		synchronized (build) {
-			TestResultAction action = build.getAction(TestResultAction.class);
-			try {
-				action = new TestResultAction(build, result, listener);
-			} catch (NullPointerException npe) {
-				throw new AbortException(Messages.QuarantinableJUnitResultArchiver_BadXML(testResults));
-			}
-			result.freeze(action);
-			action.setHealthScaleFactor(getHealthScaleFactor()); // overwrites previous value if appending
-			if (result.isEmpty()) {
-				if (build.getResult() == Result.FAILURE) {
-					// most likely a build failed before it gets to the test phase.
-					// don't report confusing error message.
-					return;
-				}
-				// most likely a configuration error in the job - e.g. false pattern to match the JUnit result files
-				throw new AbortException("JUnitResultArchiver.ResultIsEmpty");
+		// everything up to attaching the results to the build works on a
+		// TestResultAction nobody else can see yet, so it is done without
+		// holding the lock on the build
+		TestResultAction action;
+		try {
+			action = new TestResultAction(build, result, listener);
+		} catch (NullPointerException npe) {
+			throw new AbortException(Messages.QuarantinableJUnitResultArchiver_BadXML(testResults));
+		}
+		result.freeze(action);
+		action.setHealthScaleFactor(getHealthScaleFactor()); // overwrites previous value if appending
+		if (result.isEmpty()) {
+			if (build.getResult() == Result.FAILURE) {
+				// most likely a build failed before it gets to the test phase.
+				// don't report confusing error message.
+				return;
 			}
+			// most likely a configuration error in the job - e.g. false pattern to match the JUnit result files
+			throw new AbortException("JUnitResultArchiver.ResultIsEmpty");
+		}
 
-			// TODO: Move into JUnitParser [BUG 3123310]
-			// FIXME: ideally, we'd use action.getData() so we can add to the data, but it's not accessible.
-			//   create a new list of data - not sure what the implications are, but that's how the quarantine
-			//   plugin worked before
-			List<Data> data = new ArrayList<Data>();
-			if (getTestDataPublishers() != null) {
-				for (TestDataPublisher tdp : getTestDataPublishers()) {
-					Data d = tdp.contributeTestData(build, workspace, launcher, listener, result);
-					if (d != null) {
-						data.add(d);
-					}
+		// TODO: Move into JUnitParser [BUG 3123310]
+		// FIXME: ideally, we'd use action.getData() so we can add to the data, but it's not accessible.
+		//   create a new list of data - not sure what the implications are, but that's how the quarantine
+		//   plugin worked before
+		QuarantineTestDataPublisher.Data quarantine = null;
+		List<Data> data = new ArrayList<Data>();
+		if (getTestDataPublishers() != null) {
+			for (TestDataPublisher tdp : getTestDataPublishers()) {
+				Data d = tdp.contributeTestData(build, workspace, launcher, listener, result);
+				if (d instanceof QuarantineTestDataPublisher.Data) {
+					quarantine = (QuarantineTestDataPublisher.Data) d;
+					quarantine.setQuarantinable();
+				}
+				if (d != null) {
+					data.add(d);
 				}
-				action.setData(data);
 			}
+			action.setData(data);
+		}
 
-			build.addAction(action);
-
-			if (action.getResult().getFailCount() > 0)
-			{
-				int quarantined = 0;
-				for (CaseResult case_result : action.getResult().getFailedTests()) {
-					QuarantineTestAction quarantineAction = case_result.getTestAction(QuarantineTestAction.class);
-					if (quarantineAction != null) {
-						if (quarantineAction.isQuarantined()) {
-							listener.getLogger().println("[Quarantine]: " + case_result.getFullName() + " failed but is quarantined");
-							quarantined++;
-						}
-					}
+		int remaining = 0;
+		if (result.getFailCount() > 0)
+		{
+			int quarantined = 0;
+			for (CaseResult case_result : result.getFailedTests()) {
+				// not attached to the build yet, so ask the data rather than the test
+				if (quarantine != null && quarantine.isQuarantined(case_result.getId())) {
+					listener.getLogger().println("[Quarantine]: " + case_result.getFullName() + " failed but is quarantined");
+					quarantined++;
 				}
+			}
 
-				int remaining = action.getResult().getFailCount() - quarantined;
-				listener.getLogger().println("[Quarantine]: " + remaining + " unquarantined failures remaining");
+			remaining = result.getFailCount() - quarantined;
+			listener.getLogger().println("[Quarantine]: " + remaining + " unquarantined failures remaining");
+		}
 
-				if (remaining > 0)
-					build.setResult(Result.UNSTABLE);
-			}
+		synchronized (build) {
+			build.addAction(action);
+			if (remaining > 0)
+				build.setResult(Result.UNSTABLE);
 		}
 	}
 
@@ -0,0 +1,111 @@
+package org.jenkinsci.plugins.quarantine;
+
+import hudson.Extension;
+import jenkins.model.GlobalConfiguration;
+import net.sf.json.JSONObject;
+import org.kohsuke.stapler.StaplerRequest;
+
+/**
+ * Global settings of the quarantine plugin, found in the "Quarantine" section
+ * of the system configuration.
+ */
+@Extension
+public class QuarantineConfiguration extends GlobalConfiguration {
+
+   private int lookBackDepth = 100;
+   private int lookBackTimeout = 30;
+   private boolean digest;
+   private int digestInterval = 60;
+   private int notificationWindow;
+   private int maxEmailsPerHour;
+
+   public QuarantineConfiguration() {
+      load();
+   }
+
+   public static QuarantineConfiguration get() {
+      return GlobalConfiguration.all().get(QuarantineConfiguration.class);
+   }
+
+   /**
+    * How many builds to go back at most when looking for the previous result of
+    * a test, 0 for no limit
+    */
+   public int getLookBackDepth() {
+      return lookBackDepth;
+   }
+
+   public void setLookBackDepth(int lookBackDepth) {
+      this.lookBackDepth = Math.max(0, lookBackDepth);
+   }
+
+   /**
+    * How many seconds to spend at most going back in the build history, 0 for
+    * no limit
+    */
+   public int getLookBackTimeout() {
+      return lookBackTimeout;
+   }
+
+   public void setLookBackTimeout(int lookBackTimeout) {
+      this.lookBackTimeout = Math.max(0, lookBackTimeout);
+   }
+
+   /**
+    * Whether to send each user a periodic digest of the failures of the tests
+    * they quarantined, instead of an email for every failing build
+    */
+   public boolean isDigest() {
+      return digest;
+   }
+
+   public void setDigest(boolean digest) {
+      this.digest = digest;
+   }
+
+   /**
+    * Minutes between two digests
+    */
+   public int getDigestInterval() {
+      return digestInterval;
+   }
+
+   public void setDigestInterval(int digestInterval) {
+      this.digestInterval = Math.max(1, digestInterval);
+   }
+
+   /**
+    * Hours during which a user is not told again about the same quarantined
+    * test failing, 0 to tell them about every failure
+    */
+   public int getNotificationWindow() {
+      return notificationWindow;
+   }
+
+   public void setNotificationWindow(int notificationWindow) {
+      this.notificationWindow = Math.max(0, notificationWindow);
+   }
+
+   /**
+    * How many emails a user gets at most per hour, 0 for no limit
+    */
+   public int getMaxEmailsPerHour() {
+      return maxEmailsPerHour;
+   }
+
+   public void setMaxEmailsPerHour(int maxEmailsPerHour) {
+      this.maxEmailsPerHour = Math.max(0, maxEmailsPerHour);
+   }
+
+   @Override
+   public boolean configure(StaplerRequest req, JSONObject json) throws FormException {
+      req.bindJSON(this, json);
+      save();
+      return true;
+   }
+
+   @Override
+   public String getDisplayName() {
+      return Messages.QuarantineConfiguration_DisplayName();
+   }
+}
@@ -0,0 +1,269 @@
+package org.jenkinsci.plugins.quarantine;
+
+import hudson.BulkChange;
+import hudson.Extension;
+import hudson.XmlFile;
+import hudson.model.Item;
+import hudson.model.Job;
+import hudson.model.Saveable;
+import hudson.model.listeners.ItemListener;
+import hudson.model.listeners.SaveableListener;
+import jenkins.model.Jenkins;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * The current quarantine state of a job, keyed by test id and persisted in
+ * quarantine.xml next to the job's config.xml. Builds look their tests up in
+ * here instead of walking back through the build history; the
+ * {@link QuarantineTestDataPublisher.Data} of a build is only a snapshot of
+ * this state at the time the build ran.
+ */
+public class QuarantineRegistry implements Saveable {
+
+   private static final Logger LOGGER = Logger.getLogger(QuarantineRegistry.class.getName());
+   private static final String FILE_NAME = "quarantine.xml";
+
+   private static final Map<Job<?, ?>, QuarantineRegistry> registries = new WeakHashMap<Job<?, ?>, QuarantineRegistry>();
+
+   private Map<String, Entry> entries = new HashMap<String, Entry>();
+
+   private transient XmlFile file;
+
+   // sorted hash codes of the ids in entries, to rule tests out without locking
+   private transient volatile int[] hashes = new int[0];
+
+   // a job that has been built before the registry existed needs to be seeded
+   // from its build history once
+   private transient boolean seeded;
+
+   // quarantines (or null for releases) made while the registry was being
+   // seeded, which the history it is seeded from may not have yet
+   private transient Map<String, Entry> unseededChanges = new HashMap<String, Entry>();
+
+   private QuarantineRegistry() {
+   }
+
+   public static QuarantineRegistry forJob(Job<?, ?> job) {
+      synchronized (registries) {
+         QuarantineRegistry registry = registries.get(job);
+         if (registry == null) {
+            registry = load(job);
+            registries.put(job, registry);
+         }
+         return registry;
+      }
+   }
+
+   /**
+    * Whether the job has a registry, without loading it
+    */
+   public static boolean exists(Job<?, ?> job) {
+      synchronized (registries) {
+         if (registries.containsKey(job)) {
+            return true;
+         }
+      }
+      return new File(job.getRootDir(), FILE_NAME).exists();
+   }
+
+   private static QuarantineRegistry load(Job<?, ?> job) {
+      QuarantineRegistry registry = new QuarantineRegistry();
+      registry.file = new XmlFile(Jenkins.XSTREAM2, new File(job.getRootDir(), FILE_NAME));
+      if (registry.file.exists()) {
+         try {
+            registry.file.unmarshal(registry);
+            registry.seeded = true;
+            registry.entriesChanged();
+         } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "failed to load " + registry.file + ", reseeding from build history", e);
+            registry.entries = new HashMap<String, Entry>();
+         }
+      }
+      return registry;
+   }
+
+   public synchronized boolean isSeeded() {
+      return seeded;
+   }
+
+   public synchronized Entry get(String testObjectId) {
+      return entries.get(testObjectId);
+   }
+
+   public boolean isEmpty() {
+      return hashes.length == 0;
+   }
+
+   /**
+    * False if the test is certainly not in quarantine. Most tests of a job
+    * never are, and this tells so without looking at the entries.
+    */
+   public boolean mightContain(String testObjectId) {
+      int[] hashes = this.hashes;
+      return hashes.length > 0 && Arrays.binarySearch(hashes, testObjectId.hashCode()) >= 0;
+   }
+
+   private void entriesChanged() {
+      int[] hashes = new int[entries.size()];
+      int i = 0;
+      for (String id : entries.keySet()) {
+         hashes[i++] = id.hashCode();
+      }
+      Arrays.sort(hashes);
+      this.hashes = hashes;
+   }
+
+   public synchronized Map<String, Entry> getEntries() {
+      return new HashMap<String, Entry>(entries);
+   }
+
+   /**
+    * Seeds the registry, unless another build has done so already. Changes
+    * made since seeding started are kept.
+    */
+   synchronized void seed(Map<String, Entry> seed) {
+      if (seeded) {
+         return;
+      }
+      entries = new HashMap<String, Entry>(seed);
+      for (Map.Entry<String, Entry> change : unseededChanges.entrySet()) {
+         if (change.getValue() != null) {
+            entries.put(change.getKey(), change.getValue());
+         } else {
+            entries.remove(change.getKey());
+         }
+      }
+      unseededChanges.clear();
+      seeded = true;
+      entriesChanged();
+      saveQuietly();
+   }
+
+   synchronized void quarantine(String testObjectId, Entry entry) {
+      entries.put(testObjectId, entry);
+      entriesChanged();
+      changed(testObjectId, entry);
+   }
+
+   /**
+    * Stores entries that were derived from the given current ones, unless the
+    * test has been quarantined or released in the meantime
+    */
+   synchronized void update(Map<String, Entry> current, Map<String, Entry> updated) {
+      boolean changed = false;
+      for (Map.Entry<String, Entry> entry : updated.entrySet()) {
+         if (entries.get(entry.getKey()) == current.get(entry.getKey())) {
+            entries.put(entry.getKey(), entry.getValue());
+            changed = true;
+         }
+      }
+      if (changed) {
+         saveQuietly();
+      }
+   }
+
+   synchronized void release(String testObjectId) {
+      if (entries.remove(testObjectId) != null || !seeded) {
+         entriesChanged();
+         changed(testObjectId, null);
+      }
+   }
+
+   private void changed(String testObjectId, Entry entry) {
+      if (seeded) {
+         saveQuietly();
+      } else {
+         // a registry file is only written once it is complete
+         unseededChanges.put(testObjectId, entry);
+      }
+   }
+
+   public synchronized void save() throws IOException {
+      if (BulkChange.contains(this)) {
+         return;
+      }
+      file.write(this);
+      SaveableListener.fireOnChange(this, file);
+   }
+
+   private void saveQuietly() {
+      try {
+         save();
+      } catch (IOException e) {
+         LOGGER.log(Level.WARNING, "failed to save " + file, e);
+      }
+   }
+
+   /**
+    * The quarantine state of a single test.
+    */
+   public static final class Entry {
+      private final String quarantinedBy;
+      private final String reason;
+      private final long date;
+      private final int passStreak;
+
+      public Entry(String quarantinedBy, String reason, long date, int passStreak) {
+         this.quarantinedBy = quarantinedBy;
+         this.reason = reason;
+         this.date = date;
+         this.passStreak = passStreak;
+      }
+
+      public String getQuarantinedBy() {
+         return quarantinedBy;
+      }
+
+      public String getReason() {
+         return reason;
+      }
+
+      public long getDate() {
+         return date;
+      }
+
+      /**
+       * The number of builds the test passed in since it last failed
+       */
+      public int getPassStreak() {
+         return passStreak;
+      }
+
+      Entry withResult(boolean passed) {
+         return new Entry(quarantinedBy, reason, date, passed ? passStreak + 1 : 0);
+      }
+   }
+
+   /**
+    * The registry file moves with its job, so forget the cached location when
+    * a job is renamed or deleted.
+    */
+   @Extension
+   public static class ItemListenerImpl extends ItemListener {
+      @Override
+      public void onLocationChanged(Item item, String oldFullName, String newFullName) {
+         forget(item);
+      }
+
+      @Override
+      public void onDeleted(Item item) {
+         forget(item);
+      }
+
+      private void forget(Item item) {
+         if (item instanceof Job) {
+            synchronized (registries) {
+               registries.remove(item);
+            }
+         }
+      }
+   }
+}
@@ -0,0 +1,421 @@
+package org.jenkinsci.plugins.quarantine;
+
+import hudson.Extension;
+import hudson.ExtensionList;
+import hudson.init.InitMilestone;
+import hudson.init.Initializer;
+import hudson.init.Terminator;
+import hudson.model.Item;
+import hudson.model.Job;
+import hudson.model.Project;
+import hudson.model.Run;
+import hudson.model.TaskListener;
+import hudson.model.listeners.ItemListener;
+import hudson.model.listeners.RunListener;
+import hudson.tasks.Publisher;
+import hudson.tasks.junit.CaseResult;
+import hudson.tasks.junit.JUnitResultArchiver;
+import hudson.tasks.junit.TestDataPublisher;
+import hudson.tasks.junit.TestResultAction;
+import hudson.util.DescribableList;
+import jenkins.model.Jenkins;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * The quarantined tests of the last finished build of each job, as shown by
+ * the {@link QuarantinedTestsReport}, keyed by the full name of the job so
+ * jobs in folders are covered too. Filled in the background at startup and
+ * kept up to date as builds complete, tests are quarantined or released and
+ * jobs are renamed or deleted, so viewing the report neither goes through
+ * all the items nor loads any test results.
+ */
+@Extension
+public class QuarantineReportIndex extends RunListener<Run<?, ?>> {
+
+   static int THREADS = Integer.getInteger(QuarantineReportIndex.class.getName() + ".threads",
+           Math.min(4, Runtime.getRuntime().availableProcessors()));
+   static long TIMEOUT = Long.getLong(QuarantineReportIndex.class.getName() + ".timeout", TimeUnit.SECONDS.toMillis(10));
+
+   private static final Logger LOGGER = Logger.getLogger(QuarantineReportIndex.class.getName());
+
+   private final Map<String, Snapshot> snapshots = new ConcurrentHashMap<String, Snapshot>();
+   private final ConcurrentMap<String, Load> loading = new ConcurrentHashMap<String, Load>();
+   private final ForkJoinPool pool = new ForkJoinPool(THREADS);
+   // starts somewhere else after every restart, so a version handed out
+   // before the restart is not mistaken for the current one
+   private final AtomicLong version = new AtomicLong(System.currentTimeMillis());
+   // jobs that may have quarantined tests, but whose last build has not been
+   // looked at yet or failed to load
+   private final Set<String> unseen = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+   public static QuarantineReportIndex get() {
+      return RunListener.all().get(QuarantineReportIndex.class);
+   }
+
+   /**
+    * Looks at every job that uses quarantine once at startup. Jobs whose
+    * registry says they have no quarantined tests don't need their last build
+    * loaded.
+    */
+   @Initializer(after = InitMilestone.JOB_LOADED)
+   public static void init() {
+      QuarantineReportIndex index = get();
+      for (Job<?, ?> job : Jenkins.getActiveInstance().getAllItems(Job.class)) {
+         if (!usesQuarantine(job)) {
+            continue;
+         }
+         QuarantineRegistry registry = QuarantineRegistry.forJob(job);
+         if (registry.isSeeded() && registry.isEmpty()) {
+            index.snapshots.put(job.getFullName(), Snapshot.EMPTY);
+         } else {
+            index.unseen.add(job.getFullName());
+            index.loadAsync(job);
+         }
+      }
+   }
+
+   @Terminator
+   public static void shutdown() {
+      for (QuarantineReportIndex index : ExtensionList.lookup(QuarantineReportIndex.class)) {
+         index.pool.shutdownNow();
+      }
+   }
+
+   /**
+    * Whether the job publishes quarantinable test results. Only the publishers
+    * of freestyle-like projects can be looked at; other jobs have a registry
+    * once they have published quarantinable test results.
+    */
+   static boolean usesQuarantine(Job<?, ?> job) {
+      if (job instanceof Project) {
+         for (Publisher publisher : ((Project<?, ?>) job).getPublishersList()) {
+            if (publisher instanceof JUnitResultArchiver) {
+               DescribableList<TestDataPublisher, ?> publishers = ((JUnitResultArchiver) publisher).getTestDataPublishers();
+               if (publishers != null && publishers.get(QuarantineTestDataPublisher.class) != null) {
+                  return true;
+               }
+            }
+         }
+         return false;
+      }
+      return QuarantineRegistry.exists(job);
+   }
+
+   /**
+    * Changes whenever the quarantined tests of a job change
+    */
+   public long getVersion() {
+      return version.get();
+   }
+
+   /**
+    * The full names of the jobs that have or may have quarantined tests, in
+    * alphabetical order
+    */
+   public List<String> getJobNames() {
+      Set<String> names = new TreeSet<String>(unseen);
+      for (Map.Entry<String, Snapshot> entry : snapshots.entrySet()) {
+         if (!entry.getValue().tests.isEmpty()) {
+            names.add(entry.getKey());
+         }
+      }
+      return new ArrayList<String>(names);
+   }
+
+   /**
+    * The quarantined tests of the last finished build of the job
+    */
+   public List<QuarantinedTest> getQuarantinedTests(Job<?, ?> job) {
+      Snapshot snapshot = snapshots.get(job.getFullName());
+      if (snapshot == null) {
+         snapshot = load(job);
+      }
+      return snapshot.tests;
+   }
+
+   /**
+    * Whether the quarantined tests of the job are known. Those of a job that
+    * is still being looked at, or failed to load, are not.
+    */
+   public boolean isLoaded(Job<?, ?> job) {
+      return snapshots.containsKey(job.getFullName());
+   }
+
+   /**
+    * The quarantined tests of the last finished builds of the jobs, in the
+    * order of the jobs. Jobs that have not been seen since startup are looked
+    * at in parallel; a job that is still being looked at after the timeout is
+    * left out this time round.
+    */
+   public List<QuarantinedTest> getQuarantinedTests(List<? extends Job<?, ?>> jobs) {
+      List<Load> loads = new ArrayList<Load>(jobs.size());
+      for (Job<?, ?> job : jobs) {
+         loads.add(isLoaded(job) ? null : loadAsync(job));
+      }
+
+      List<QuarantinedTest> tests = new ArrayList<QuarantinedTest>();
+      for (int i = 0; i < jobs.size(); i++) {
+         Job<?, ?> job = jobs.get(i);
+         Load load = loads.get(i);
+         if (load == null) {
+            tests.addAll(getQuarantinedTests(job));
+            continue;
+         }
+         try {
+            tests.addAll(load.get().tests);
+         } catch (TimeoutException e) {
+            LOGGER.info("left out the quarantined tests of " + job.getFullName() + ", they are still being looked up");
+         } catch (ExecutionException e) {
+            LOGGER.log(Level.WARNING, "failed looking up quarantined tests of " + job.getFullName(), e.getCause());
+         } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            break;
+         }
+      }
+      return tests;
+   }
+
+   private Load loadAsync(Job<?, ?> job) {
+      String name = job.getFullName();
+      Load load = loading.get(name);
+      if (load == null) {
+         Load newLoad = new Load(name, job);
+         load = loading.putIfAbsent(name, newLoad);
+         if (load == null) {
+            load = newLoad;
+            execute(newLoad.task);
+         }
+      }
+      return load;
+   }
+
+   private void execute(ForkJoinTask<?> task) {
+      try {
+         pool.execute(task);
+      } catch (RejectedExecutionException e) {
+         // shutting down
+         task.quietlyInvoke();
+      }
+   }
+
+   /**
+    * Looks at the last finished build of a job in the background
+    */
+   private class Load implements Callable<Snapshot> {
+      private final String name;
+      private final Job<?, ?> job;
+      private final ForkJoinTask<Snapshot> task = ForkJoinTask.adapt(this);
+      private volatile long started;
+
+      Load(String name, Job<?, ?> job) {
+         this.name = name;
+         this.job = job;
+      }
+
+      public Snapshot call() {
+         started = System.currentTimeMillis();
+         try {
+            return load(job);
+         } finally {
+            loading.remove(name, this);
+         }
+      }
+
+      /**
+       * Waits until the job has been looked at for as long as the timeout
+       */
+      Snapshot get() throws InterruptedException, ExecutionException, TimeoutException {
+         long start = started;
+         long remaining = start > 0 ? start + TIMEOUT - System.currentTimeMillis() : TIMEOUT;
+         return task.get(Math.max(0, remaining), TimeUnit.MILLISECONDS);
+      }
+   }
+
+   /**
+    * Finds the last finished build of a job that has not been seen since startup
+    */
+   private Snapshot load(Job<?, ?> job) {
+      Run<?, ?> lb = lastFinished(job.getLastBuild());
+      if (lb == null) {
+         return empty(job.getFullName());
+      }
+      return update(lb);
+   }
+
+   /**
+    * Remembers that a job has no finished builds, unless one has been seen
+    * in the meantime
+    */
+   private Snapshot empty(String name) {
+      synchronized (snapshots) {
+         Snapshot current = snapshots.get(name);
+         if (current != null) {
+            return current;
+         }
+         snapshots.put(name, Snapshot.EMPTY);
+         unseen.remove(name);
+      }
+      return Snapshot.EMPTY;
+   }
+
+   private static Run<?, ?> lastFinished(Run<?, ?> run) {
+      while (run != null && (run.hasntStartedYet() || run.isBuilding()))
+         run = run.getPreviousBuild();
+      return run;
+   }
+
+   @Override
+   public void onCompleted(Run<?, ?> run, TaskListener listener) {
+      // most jobs have nothing to do with quarantine; the checks go from cheap
+      // to loading the test result
+      if (!snapshots.containsKey(run.getParent().getFullName()) && !usesQuarantine(run.getParent())
+              && QuarantineTestDataPublisher.Data.forBuild(run) == null) {
+         return;
+      }
+      update(run);
+   }
+
+   @Override
+   public void onDeleted(Run<?, ?> run) {
+      String name = run.getParent().getFullName();
+      synchronized (snapshots) {
+         Snapshot current = snapshots.get(name);
+         if (current == null || current.buildNumber != run.getNumber()) {
+            return;
+         }
+         // listed until the previous build has been looked at
+         snapshots.remove(name);
+         unseen.add(name);
+         version.incrementAndGet();
+      }
+      // the run is still part of its job while it is being deleted
+      final Run<?, ?> previous = lastFinished(run.getPreviousBuild());
+      if (previous == null) {
+         empty(name);
+         return;
+      }
+      execute(ForkJoinTask.adapt(new Runnable() {
+         public void run() {
+            update(previous);
+         }
+      }));
+   }
+
+   /**
+    * Replaces what is known about the build's job, unless a newer build has
+    * been seen already.
+    */
+   Snapshot update(Run<?, ?> build) {
+      Snapshot snapshot = new Snapshot(build.getNumber(), findQuarantinedTests(build));
+      String name = build.getParent().getFullName();
+      synchronized (snapshots) {
+         Snapshot current = snapshots.get(name);
+         if (current != null && current.buildNumber > snapshot.buildNumber) {
+            return current;
+         }
+         snapshots.put(name, snapshot);
+         unseen.remove(name);
+         version.incrementAndGet();
+      }
+      return snapshot;
+   }
+
+   private static List<QuarantinedTest> findQuarantinedTests(Run<?, ?> build) {
+      QuarantineTestDataPublisher.Data data = QuarantineTestDataPublisher.Data.forBuild(build);
+      if (data == null) {
+         return Collections.emptyList();
+      }
+      TestResultAction action = build.getAction(TestResultAction.class);
+      QuarantineRegistry registry = QuarantineRegistry.forJob(build.getParent());
+      List<QuarantinedTest> tests = new ArrayList<QuarantinedTest>();
+      for (Map.Entry<String, QuarantineTestAction> entry : data.getQuarantines().entrySet()) {
+         if (entry.getValue().isQuarantined()) {
+            hudson.tasks.test.TestResult result = action.getResult().findCorrespondingResult(entry.getKey());
+            if (result instanceof CaseResult) {
+               tests.add(new QuarantinedTest((CaseResult) result, toEntry(registry.get(entry.getKey()), entry.getValue(), result)));
+            }
+         }
+      }
+      return tests;
+   }
+
+   private static QuarantineRegistry.Entry toEntry(QuarantineRegistry.Entry entry, QuarantineTestAction action,
+           hudson.tasks.test.TestResult result) {
+      if (entry != null) {
+         return entry;
+      }
+      // not in the registry until it has been seeded
+      return action.toEntry(QuarantinedTestsReport.countSuccessivePasses(result));
+   }
+
+   private static class Snapshot {
+      static final Snapshot EMPTY = new Snapshot(0, Collections.<QuarantinedTest>emptyList());
+
+      final int buildNumber;
+      final List<QuarantinedTest> tests;
+
+      Snapshot(int buildNumber, List<QuarantinedTest> tests) {
+         this.buildNumber = buildNumber;
+         this.tests = Collections.unmodifiableList(tests);
+      }
+   }
+
+   @Extension
+   public static class ItemListenerImpl extends ItemListener {
+      @Override
+      public void onLocationChanged(Item item, String oldFullName, String newFullName) {
+         // also called for each job inside a folder that is moved. The rows
+         // know the name and url of the job, so they are looked up again
+         QuarantineReportIndex index = get();
+         boolean known = index.snapshots.remove(oldFullName) != null;
+         known |= index.unseen.remove(oldFullName);
+         if (known) {
+            index.version.incrementAndGet();
+            if (item instanceof Job) {
+               index.load((Job<?, ?>) item);
+            }
+         }
+      }
+
+      @Override
+      public void onDeleted(Item item) {
+         // deleting a folder deletes the jobs inside it
+         String prefix = item.getFullName() + "/";
+         QuarantineReportIndex index = get();
+         synchronized (index.snapshots) {
+            for (Iterator<String> it = index.snapshots.keySet().iterator(); it.hasNext();) {
+               String name = it.next();
+               if (name.equals(item.getFullName()) || name.startsWith(prefix)) {
+                  it.remove();
+                  index.version.incrementAndGet();
+               }
+            }
+            for (Iterator<String> it = index.unseen.iterator(); it.hasNext();) {
+               String name = it.next();
+               if (name.equals(item.getFullName()) || name.startsWith(prefix)) {
+                  it.remove();
+               }
+            }
+         }
+      }
+   }
+}
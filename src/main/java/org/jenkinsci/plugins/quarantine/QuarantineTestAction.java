@@ -1,10 +1,12 @@
 package org.jenkinsci.plugins.quarantine;
 
 import org.jenkinsci.plugins.quarantine.QuarantineTestDataPublisher.Data;
+import com.google.common.collect.Interner;
+import com.google.common.collect.Interners;
+import hudson.Util;
 import hudson.model.BuildBadgeAction;
 import hudson.model.Hudson;
 import hudson.model.ProminentProjectAction;
-import hudson.model.User;
 import hudson.tasks.junit.TestAction;
 import org.acegisecurity.Authentication;
 import org.apache.commons.lang.StringUtils;
@@ -14,24 +16,43 @@ import org.kohsuke.stapler.export.Exported;
 import org.kohsuke.stapler.export.ExportedBean;
 
 import java.io.IOException;
-import java.util.Collections;
+import java.util.Arrays;
 import java.util.Date;
 
 import javax.servlet.ServletException;
 
 @ExportedBean(defaultVisibility = 2)
 public class QuarantineTestAction extends TestAction implements BuildBadgeAction, ProminentProjectAction {
+   private static final Interner<Details> DETAILS = Interners.newWeakInterner();
+
    private boolean quarantined;
+   // shared by all actions with the same owner, reason and date, which is the
+   // case for a test that is quarantined across many builds
+   private Details details;
+   private String testObjectId;
+
+   // only set when read from files written before there were details
    private String quarantinedBy;
    private Date quarantineDate;
    private String reason;
-   private String testObjectId;
 
-   protected Data owner;
+   // set again when read back from the build's quarantine.xml
+   protected transient Data owner;
 
    QuarantineTestAction(Data owner, String testObjectId) {
       this.owner = owner;
-      this.testObjectId = testObjectId;
+      this.testObjectId = Util.intern(testObjectId);
+   }
+
+   protected Object readResolve() {
+      if (quarantinedBy != null || quarantineDate != null || reason != null) {
+         details = Details.of(quarantinedBy, reason, quarantineDate != null ? quarantineDate.getTime() : 0);
+         quarantinedBy = null;
+         quarantineDate = null;
+         reason = null;
+      }
+      testObjectId = Util.intern(Data.canonicalId(testObjectId));
+      return this;
    }
 
    public void doQuarantine(StaplerRequest req, StaplerResponse resp) throws ServletException, IOException {
@@ -73,24 +94,19 @@ public class QuarantineTestAction extends TestAction implements BuildBadgeAction
    }
 
    public String quarantinedByName() {
-      User user = User.get(quarantinedBy, false, Collections.emptyMap());
-      if (user != null) {
-         return user.getDisplayName();
-      } else {
-         return quarantinedBy;
-      }
+      return quarantined ? UserDetailsCache.getDisplayName(details.quarantinedBy) : null;
    }
 
    public String getReason() {
-      return reason;
+      return details != null ? details.reason : null;
    }
 
    public Date getDate() {
-      return new Date(this.quarantineDate.getTime());
+      return quarantined ? new Date(details.date) : null;
    }
 
    public boolean hasReason() {
-      return !StringUtils.isEmpty(reason);
+      return !StringUtils.isEmpty(getReason());
    }
 
    public String getLatestResultUrl() {
@@ -118,11 +134,7 @@ public class QuarantineTestAction extends TestAction implements BuildBadgeAction
    }
 
    public void quarantine(String quarantinedBy, String reason, Date date) {
-      this.quarantined = true;
-      this.quarantinedBy = quarantinedBy;
-      this.reason = reason;
-      this.quarantineDate = new Date(date.getTime());
-      owner.addQuarantine(testObjectId, this);
+      quarantine(Details.of(quarantinedBy, reason, date.getTime()));
    }
 
    public void quarantine(String quarantinedBy, String reason) {
@@ -130,21 +142,85 @@ public class QuarantineTestAction extends TestAction implements BuildBadgeAction
    }
 
    public void quarantine(QuarantineTestAction action) {
-      quarantine(action.quarantinedByName(), action.getReason(), action.getDate());
+      quarantine(action.details);
+   }
+
+   private void quarantine(Details details) {
+      this.quarantined = true;
+      this.details = details;
+      owner.addQuarantine(testObjectId, this);
+      owner.quarantineChanged(testObjectId, this);
    }
 
    public void release() {
       this.quarantined = false;
-      this.quarantinedBy = null;
-      this.quarantineDate = null;
       // we remember the reason to show it if someone puts this test back in
       // quarantine.
+      this.details = details != null ? Details.of(null, details.reason, 0) : null;
+      owner.quarantineChanged(testObjectId, this);
+   }
+
+   /**
+    * Takes over the state recorded in the job's {@link QuarantineRegistry}
+    * without feeding it back into the registry
+    */
+   void restore(QuarantineRegistry.Entry entry) {
+      this.quarantined = true;
+      this.details = Details.of(entry.getQuarantinedBy(), entry.getReason(), entry.getDate());
+      owner.addQuarantine(testObjectId, this);
+   }
+
+   Details getDetails() {
+      return details;
+   }
+
+   QuarantineRegistry.Entry toEntry(int passStreak) {
+      return new QuarantineRegistry.Entry(details.quarantinedBy, details.reason, details.date, passStreak);
    }
 
    @Override
    public String toString() {
-      return "QuarantineTestAction(quarantined=" + quarantined + ",quarantinedBy=" + quarantinedBy + ",reason="
-            + reason + ")";
+      return "QuarantineTestAction(quarantined=" + quarantined + ",quarantinedBy="
+            + (details != null ? details.quarantinedBy : null) + ",reason=" + getReason() + ")";
+   }
+
+   /**
+    * Who quarantined a test, why and when. There is only one instance for each
+    * combination in memory.
+    */
+   static final class Details {
+      private final String quarantinedBy;
+      private final String reason;
+      private final long date;
+
+      private Details(String quarantinedBy, String reason, long date) {
+         this.quarantinedBy = Util.intern(quarantinedBy);
+         this.reason = Util.intern(reason);
+         this.date = date;
+      }
+
+      static Details of(String quarantinedBy, String reason, long date) {
+         return DETAILS.intern(new Details(quarantinedBy, reason, date));
+      }
+
+      private Object readResolve() {
+         return of(quarantinedBy, reason, date);
+      }
+
+      @Override
+      public boolean equals(Object o) {
+         if (!(o instanceof Details)) {
+            return false;
+         }
+         Details other = (Details) o;
+         return date == other.date && StringUtils.equals(quarantinedBy, other.quarantinedBy)
+                 && StringUtils.equals(reason, other.reason);
+      }
+
+      @Override
+      public int hashCode() {
+         return Arrays.hashCode(new Object[] { quarantinedBy, reason, date });
+      }
    }
 
 }
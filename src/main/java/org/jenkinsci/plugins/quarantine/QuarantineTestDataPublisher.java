@@ -1,17 +1,34 @@
 package org.jenkinsci.plugins.quarantine;
 
+import hudson.BulkChange;
 import hudson.Extension;
 import hudson.FilePath;
 import hudson.Launcher;
+import hudson.Util;
+import hudson.XmlFile;
 import hudson.model.*;
+import hudson.model.listeners.SaveableListener;
 import hudson.tasks.junit.*;
 import hudson.tasks.test.AbstractTestResultAction;
+import jenkins.model.Jenkins;
 
+import java.io.File;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
+import java.util.Date;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
 import org.kohsuke.stapler.DataBoundConstructor;
 
@@ -19,56 +36,41 @@ import javax.annotation.Nonnull;
 
 public class QuarantineTestDataPublisher extends TestDataPublisher {
 
+   private static final Logger LOGGER = Logger.getLogger(QuarantineTestDataPublisher.class.getName());
+
    @DataBoundConstructor
    public QuarantineTestDataPublisher() {
    }
 
    @Override
    public Data contributeTestData(Run<?, ?> run, @Nonnull FilePath workspace, Launcher launcher,
-                                  TaskListener listener, TestResult testResult) {
+                                  TaskListener listener, TestResult testResult) throws InterruptedException {
       Data data = new Data(run);
+      QuarantineRegistry registry = QuarantineRegistry.forJob(run.getParent());
 
-      MailNotifier notifier = new MailNotifier(listener);
+      if (!registry.isSeeded()) {
+         listener.getLogger().println("[Quarantine]: seeding quarantine registry from build history");
+         registry.seed(resolveFromHistory(run, listener, testResult));
+      }
 
-      for (SuiteResult suite : testResult.getSuites()) {
-         for (CaseResult result : suite.getCases()) {
-            QuarantineTestAction previousAction = null;
-            CaseResult previous = result.getPreviousResult();
-            Run previousBuild = run.getPreviousCompletedBuild();
+      MailNotifier notifier = new MailNotifier(listener);
 
-            if (previous != null) {
-               previousAction = previous.getTestAction(QuarantineTestAction.class);
-            }
+      Map<String, QuarantineRegistry.Entry> current = new HashMap<>();
+      Map<String, QuarantineRegistry.Entry> updated = new HashMap<>();
 
-            // no immediate predecessor (e.g. because job failed or did not
-            // run), try and go back in build history
-            while (previous == null && previousBuild != null) {
-               if (previousBuild.getAction(AbstractTestResultAction.class) != null) {
-                  hudson.tasks.test.TestResult tr = null;
-                  try {
-                     tr = previousBuild.getAction(AbstractTestResultAction.class).findCorrespondingResult(
-                             result.getId());
-                  }
-                  catch (Exception e){
-                     listener.getLogger().println("could not find result for id " + result.getId() + " in build " + previousBuild + ": " + e.getMessage());
-                  }
-                  if (tr != null) {
-                     listener.getLogger().println("found " + tr.getDisplayName() + " in build " + previousBuild);
-                     previousAction = tr.getTestAction(QuarantineTestAction.class);
-                     break;
-                  }
-               }
-               else
-               {
-                  listener.getLogger().println("build " + previousBuild + " does not have test results");
-               }
-               previousBuild = previousBuild.getPreviousCompletedBuild();
+      // most jobs have no or only a few tests in quarantine
+      for (SuiteResult suite : registry.isEmpty() ? Collections.<SuiteResult>emptyList() : testResult.getSuites()) {
+         for (CaseResult result : suite.getCases()) {
+            String id = result.getId();
+            if (!registry.mightContain(id)) {
+               continue;
             }
-
-            if (previousAction != null && previousAction.isQuarantined()) {
-               QuarantineTestAction action = new QuarantineTestAction(data, result.getId());
-               action.quarantine(previousAction);
-               data.addQuarantine(result.getId(), action);
+            QuarantineRegistry.Entry entry = registry.get(id);
+            if (entry != null) {
+               QuarantineTestAction action = new QuarantineTestAction(data, id);
+               action.restore(entry);
+               current.put(id, entry);
+               updated.put(id, entry.withResult(result.isPassed()));
 
                // send email if failed
                if (!result.isPassed()) {
@@ -77,54 +79,278 @@ public class QuarantineTestDataPublisher extends TestDataPublisher {
             }
          }
       }
+      // keep the number of passes since the last failure of each quarantined
+      // test, so the report doesn't need to go through the test's history
+      registry.update(current, updated);
+      if (!data.getQuarantines().isEmpty()) {
+         try {
+            data.write();
+         } catch (IOException e) {
+            listener.getLogger().println("[Quarantine]: failed to save quarantine state: " + e.getMessage());
+         }
+      }
       notifier.sendEmails();
       return data;
 
 
    }
 
+   /**
+    * Works out the quarantine state the way it was done before there was a
+    * {@link QuarantineRegistry}: from the previous result of each test or, if
+    * there is none, by going back in the build history. Quarantined tests that
+    * did not run in this build are carried over from the previous build.
+    */
+   private Map<String, QuarantineRegistry.Entry> resolveFromHistory(Run<?, ?> run, TaskListener listener,
+                                                                    TestResult testResult)
+           throws InterruptedException {
+      Map<String, QuarantineRegistry.Entry> quarantined = new HashMap<>();
+      Set<String> ids = new HashSet<>();
+      Set<String> pending = new HashSet<>();
+
+      for (SuiteResult suite : testResult.getSuites()) {
+         for (CaseResult result : suite.getCases()) {
+            ids.add(result.getId());
+            CaseResult previous = result.getPreviousResult();
+            if (previous == null) {
+               pending.add(result.getId());
+            } else {
+               addIfQuarantined(quarantined, result.getId(), previous);
+            }
+         }
+      }
+
+      // no immediate predecessor (e.g. because job failed or did not run), try
+      // and go back in build history. Each build is visited once for all the
+      // tests that are still unresolved, within the configured bounds.
+      QuarantineConfiguration config = QuarantineConfiguration.get();
+      int maxDepth = config.getLookBackDepth();
+      long deadline = config.getLookBackTimeout() > 0
+              ? System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(config.getLookBackTimeout())
+              : Long.MAX_VALUE;
+      int depth = 0;
+      int unresolved = pending.size();
+      Run<?, ?> previousBuild = run.getPreviousCompletedBuild();
+      while (!pending.isEmpty() && previousBuild != null) {
+         if (Thread.interrupted()) {
+            listener.getLogger().println("[Quarantine]: aborted going back in build history at build " + previousBuild);
+            throw new InterruptedException();
+         }
+         if (maxDepth > 0 && depth >= maxDepth) {
+            listener.getLogger().println("[Quarantine]: stopped going back in build history after " + depth + " builds");
+            break;
+         }
+         if (System.currentTimeMillis() > deadline) {
+            listener.getLogger().println("[Quarantine]: stopped going back in build history after "
+                    + config.getLookBackTimeout() + " seconds at build " + previousBuild);
+            break;
+         }
+         depth++;
+
+         AbstractTestResultAction<?> action = previousBuild.getAction(AbstractTestResultAction.class);
+         Object previousResult = action != null ? action.getResult() : null;
+         if (previousResult instanceof hudson.tasks.test.TestResult) {
+            int found = 0;
+            for (Iterator<String> it = pending.iterator(); it.hasNext();) {
+               String id = it.next();
+               hudson.tasks.test.TestResult tr = null;
+               try {
+                  tr = ((hudson.tasks.test.TestResult) previousResult).findCorrespondingResult(id);
+               }
+               catch (Exception e){
+                  listener.getLogger().println("could not find result for id " + id + " in build " + previousBuild + ": " + e.getMessage());
+               }
+               if (tr != null) {
+                  addIfQuarantined(quarantined, id, tr);
+                  it.remove();
+                  found++;
+               }
+            }
+            if (found > 0) {
+               listener.getLogger().println("found " + found + " results in build " + previousBuild);
+            }
+         }
+         else
+         {
+            listener.getLogger().println("build " + previousBuild + " does not have test results");
+         }
+         previousBuild = previousBuild.getPreviousCompletedBuild();
+      }
+
+      if (unresolved > 0) {
+         listener.getLogger().println("[Quarantine]: resolved " + (unresolved - pending.size()) + " of " + unresolved
+                 + " tests without a previous result in " + depth + " builds");
+      }
+      if (!pending.isEmpty()) {
+         listener.getLogger().println("[Quarantine]: " + pending.size() + " tests not found in build history, assuming they are not quarantined");
+      }
+
+      previousBuild = run.getPreviousCompletedBuild();
+      Data previousData = previousBuild != null ? Data.forBuild(previousBuild) : null;
+      if (previousData != null) {
+         for (Map.Entry<String, QuarantineTestAction> entry : previousData.getQuarantines().entrySet()) {
+            if (!ids.contains(entry.getKey()) && entry.getValue().isQuarantined()) {
+               quarantined.put(entry.getKey(), entry.getValue().toEntry(
+                       QuarantinedTestsReport.countSuccessivePasses(previousData.getResultForTestId(entry.getKey()))));
+            }
+         }
+      }
+      return quarantined;
+   }
+
+   private static void addIfQuarantined(Map<String, QuarantineRegistry.Entry> quarantined, String id,
+                                        hudson.tasks.test.TestResult previous) {
+      QuarantineTestAction action = previous.getTestAction(QuarantineTestAction.class);
+      if (action != null && action.isQuarantined()) {
+         quarantined.put(id, action.toEntry(QuarantinedTestsReport.countSuccessivePasses(previous)));
+      }
+   }
+
+   /**
+    * The quarantine state of the tests of a build. It is kept in
+    * quarantine.xml in the build's directory rather than in build.xml, and
+    * only read from there once a test of the build is looked at.
+    */
    public static class Data extends TestResultAction.Data implements Saveable {
 
-      private Map<String, QuarantineTestAction> quarantines = new HashMap<>();
+      private static final String FILE_NAME = "quarantine.xml";
+      private static final String ID_PREFIX = "junit";
+
+      // only set when read from a build.xml written before there was a
+      // quarantine.xml, moved over on first use
+      private Map<String, QuarantineTestAction> quarantines;
 
       private final Run<?, ?> build;
 
+      // whether the results were recorded by QuarantinableJUnitResultArchiver,
+      // null for builds from before this was recorded
+      private Boolean quarantinable;
+
+      private transient Map<String, QuarantineTestAction> loaded;
+
+      // bumped whenever the configuration of a job is saved
+      private static volatile int configVersion = 1;
+      private transient int enabledVersion;
+      private transient boolean enabled;
+
+      private transient Map<TestObject, List<TestAction>> unquarantined;
+
+      // the pass streaks of the tests to quarantine, set while changing many
+      // tests at once, see changeAll
+      private transient Map<String, Integer> bulkStreaks;
+
+      /**
+       * What became of a test in {@link #changeAll}
+       */
+      public enum Outcome {
+         QUARANTINED, RELEASED, UNCHANGED, NOT_FOUND
+      }
+
       Data(Run<?, ?> build) {
          this.build = build;
+         this.quarantinable = false;
+         this.loaded = new HashMap<>();
+      }
+
+      void setQuarantinable() {
+         quarantinable = true;
+         enabledVersion = 0;
+      }
+
+      /**
+       * Whether to show the quarantine actions at all. Worked out once for
+       * each configuration of the job, as this is asked for every test.
+       */
+      boolean isEnabled() {
+         int version = configVersion;
+         if (enabledVersion != version) {
+            enabled = computeEnabled();
+            enabledVersion = version;
+         }
+         return enabled;
+      }
+
+      private boolean computeEnabled() {
+         if (quarantinable != null && !quarantinable) {
+            // recorded by a plain junit archiver, which doesn't take the
+            // quarantine into account
+            return false;
+         }
+         if (build.getParent() instanceof Project) {
+            // only display if QuarantinableJUnitResultArchiver chosen, to avoid
+            // confusion
+            Project<?, ?> project = (Project<?, ?>) build.getParent();
+            return project.getPublishersList().get(QuarantinableJUnitResultArchiver.class) != null;
+         }
+         return true;
       }
 
       @Override
       public List<TestAction> getTestAction(@SuppressWarnings("deprecation")TestObject testObject) {
 
-         if ((build.getParent() instanceof Project))
-         {
-            Project project = (Project) build.getParent();
-            if (project != null &&  project.getPublishersList().get(QuarantinableJUnitResultArchiver.class) == null) {
-               // only display if QuarantinableJUnitResultArchiver chosen, to avoid
-               // confusion
-               return Collections.emptyList();
-         }}
-
-         final String prefix = "junit";
-         String id = testObject.getId();
-         QuarantineTestAction result = quarantines.get(id);
-
-         // In Hudson 1.347 or so, IDs changed, and a junit/ prefix was added.
-         // Attempt to fix this backward-incompatibility
-         if (result == null && id.startsWith(prefix)) {
-            result = quarantines.get(id.substring(prefix.length()));
+         if (!isEnabled()) {
+            return Collections.emptyList();
          }
 
+         // legacy ids have been made canonical on loading
+         String id = testObject.getId();
+         QuarantineTestAction result = getQuarantines().get(id);
+
          if (result != null) {
             return Collections.singletonList(result);
          }
 
          if (testObject instanceof CaseResult) {
-            return Collections.singletonList(new QuarantineTestAction(this, id));
+            return getUnquarantinedAction(testObject, id);
          }
          return Collections.emptyList();
       }
 
+      /**
+       * The same action every time a test that is not in quarantine is asked
+       * for, until its test result is unloaded. It becomes a quarantined one
+       * if the test is quarantined.
+       */
+      private synchronized List<TestAction> getUnquarantinedAction(TestObject testObject, String id) {
+         if (unquarantined == null) {
+            unquarantined = new WeakHashMap<>();
+         }
+         List<TestAction> actions = unquarantined.get(testObject);
+         if (actions == null) {
+            actions = Collections.<TestAction>singletonList(new QuarantineTestAction(this, id));
+            unquarantined.put(testObject, actions);
+         }
+         return actions;
+      }
+
+      /**
+       * The quarantine data of a finished build, if it has any.
+       */
+      static Data forBuild(Run<?, ?> build) {
+         TestResultAction action = build.getAction(TestResultAction.class);
+         if (action == null || action.getResult() == null) {
+            return null;
+         }
+         // the data list of a TestResultAction is not accessible, but every
+         // test action we hand out knows its owner
+         for (SuiteResult suite : action.getResult().getSuites()) {
+            for (CaseResult result : suite.getCases()) {
+               QuarantineTestAction quarantineAction = result.getTestAction(QuarantineTestAction.class);
+               return quarantineAction != null ? quarantineAction.owner : null;
+            }
+         }
+         return null;
+      }
+
+      boolean isQuarantined(String testObjectId) {
+         QuarantineTestAction action = getQuarantines().get(testObjectId);
+         return action != null && action.isQuarantined();
+      }
+
+      Run<?, ?> getBuild() {
+         return build;
+      }
+
       boolean isLatestResult() {
          return build.getParent().getLastCompletedBuild() == build;
       }
@@ -137,14 +363,210 @@ public class QuarantineTestDataPublisher extends TestDataPublisher {
          return null;
       }
 
+      /**
+       * Left to the {@link BuildSaver} to do once a burst of changes is over
+       */
       public void save() throws IOException {
-         build.save();
+         BuildSaver.get().save(this);
+      }
+
+      private XmlFile getFile() {
+         return new XmlFile(Jenkins.XSTREAM2, new File(build.getRootDir(), FILE_NAME));
       }
 
-      public void addQuarantine(String testObjectId, QuarantineTestAction quarantine) {
-         quarantines.put(testObjectId, quarantine);
+      /**
+       * Writes quarantine.xml, and build.xml as well if that still has the
+       * quarantine state in it
+       */
+      void write() throws IOException {
+         if (!build.getRootDir().isDirectory()) {
+            // deleted in the meantime, don't bring it back
+            return;
+         }
+         Map<String, QuarantineTestAction> quarantines = getQuarantines();
+         synchronized (this) {
+            getFile().write(quarantines);
+         }
+         if (this.quarantines != null) {
+            this.quarantines = null;
+            build.save();
+         }
+      }
+
+      public synchronized void addQuarantine(String testObjectId, QuarantineTestAction quarantine) {
+         getQuarantines().put(testObjectId, quarantine);
       }
 
+      @SuppressWarnings("unchecked")
+      synchronized Map<String, QuarantineTestAction> getQuarantines() {
+         if (loaded != null) {
+            return loaded;
+         }
+         if (quarantines != null) {
+            LOGGER.fine("moving quarantine state of " + build + " out of build.xml");
+            loaded = new HashMap<>(quarantines);
+            BuildSaver.get().save(this);
+         } else {
+            XmlFile file = getFile();
+            loaded = new HashMap<>();
+            if (file.exists()) {
+               try {
+                  loaded = (Map<String, QuarantineTestAction>) file.read();
+               } catch (IOException e) {
+                  LOGGER.log(Level.WARNING, "failed to load " + file, e);
+               }
+            }
+         }
+         loaded = canonical(loaded);
+         for (QuarantineTestAction action : loaded.values()) {
+            action.owner = this;
+         }
+         return loaded;
+      }
+
+      /**
+       * In Hudson 1.347 or so, IDs changed, and a junit/ prefix was added. Test
+       * ids from before then are given the prefix, so every test is found
+       * under the id it has now.
+       */
+      static String canonicalId(String id) {
+         return id == null || id.startsWith(ID_PREFIX) ? id : ID_PREFIX + id;
+      }
+
+      private static Map<String, QuarantineTestAction> canonical(Map<String, QuarantineTestAction> quarantines) {
+         Map<String, QuarantineTestAction> result = new HashMap<>(quarantines.size() * 4 / 3 + 1);
+         for (Map.Entry<String, QuarantineTestAction> entry : quarantines.entrySet()) {
+            String id = canonicalId(entry.getKey());
+            // an entry under the current id wins over one under the legacy id
+            if (id.equals(entry.getKey()) || !quarantines.containsKey(id)) {
+               result.put(Util.intern(id), entry.getValue());
+            }
+         }
+         return result;
+      }
+
+      /**
+       * Changes made to the latest result show up in the report right away and
+       * carry over to the following builds through the job's
+       * {@link QuarantineRegistry}. A registry that is still being seeded
+       * keeps them until it is done.
+       */
+      void quarantineChanged(String testObjectId, QuarantineTestAction action) {
+         if (!isLatestResult()) {
+            return;
+         }
+         Map<String, Integer> streaks;
+         synchronized (this) {
+            streaks = bulkStreaks;
+         }
+         QuarantineRegistry registry = QuarantineRegistry.forJob(build.getParent());
+         if (action.isQuarantined()) {
+            Integer streak = streaks != null ? streaks.get(testObjectId) : null;
+            registry.quarantine(testObjectId, action.toEntry(streak != null ? streak
+                    : QuarantinedTestsReport.countSuccessivePasses(getResultForTestId(testObjectId))));
+         } else {
+            registry.release(testObjectId);
+         }
+         // after the registry, which the report takes the pass streak from
+         if (streaks == null) {
+            QuarantineReportIndex.get().update(build);
+         }
+      }
+
+      /**
+       * Quarantines the given tests, or releases them if quarantinedBy is null.
+       * Tests are given by id or full name; a prefix such as a suite or class
+       * name selects all tests whose full name starts with it. The build, the
+       * job's registry and the report are saved and updated once at the end.
+       */
+      Map<String, Outcome> changeAll(Collection<String> tests, String prefix, String quarantinedBy,
+                                     String reason) throws IOException {
+         Map<String, Outcome> outcomes = new LinkedHashMap<>();
+         TestResultAction action = build.getAction(TestResultAction.class);
+         if (action == null || action.getResult() == null) {
+            return outcomes;
+         }
+
+         Map<String, CaseResult> cases = new LinkedHashMap<>();
+         Map<String, CaseResult> byName = new HashMap<>();
+         for (SuiteResult suite : action.getResult().getSuites()) {
+            for (CaseResult result : suite.getCases()) {
+               byName.put(result.getId(), result);
+               byName.put(result.getFullName(), result);
+               if (prefix != null && result.getFullName().startsWith(prefix)) {
+                  cases.put(result.getFullName(), result);
+               }
+            }
+         }
+         for (String test : tests) {
+            cases.put(test, byName.get(test));
+         }
+
+         // going back through the builds takes a while, so it is done once for
+         // all tests and before this build's actions are locked
+         List<CaseResult> toQuarantine = new ArrayList<>();
+         if (quarantinedBy != null && isLatestResult()) {
+            for (CaseResult result : cases.values()) {
+               QuarantineTestAction test = result != null ? result.getTestAction(QuarantineTestAction.class) : null;
+               if (test != null && !test.isQuarantined()) {
+                  toQuarantine.add(result);
+               }
+            }
+         }
+         Map<String, Integer> streaks = QuarantinedTestsReport.countSuccessivePasses(toQuarantine);
+         synchronized (this) {
+            apply(cases, quarantinedBy, reason, streaks, outcomes);
+         }
+         if (isLatestResult()) {
+            QuarantineReportIndex.get().update(build);
+         }
+         save();
+         return outcomes;
+      }
+
+      private void apply(Map<String, CaseResult> cases, String quarantinedBy, String reason,
+                         Map<String, Integer> streaks, Map<String, Outcome> outcomes) throws IOException {
+         Date date = new Date();
+         QuarantineRegistry registry = QuarantineRegistry.forJob(build.getParent());
+         BulkChange bc = new BulkChange(registry);
+         bulkStreaks = streaks;
+         try {
+            for (Map.Entry<String, CaseResult> entry : cases.entrySet()) {
+               QuarantineTestAction test = entry.getValue() != null
+                       ? entry.getValue().getTestAction(QuarantineTestAction.class) : null;
+               if (test == null) {
+                  outcomes.put(entry.getKey(), Outcome.NOT_FOUND);
+               } else if (quarantinedBy != null && !test.isQuarantined()) {
+                  test.quarantine(quarantinedBy, reason, date);
+                  outcomes.put(entry.getKey(), Outcome.QUARANTINED);
+               } else if (quarantinedBy == null && test.isQuarantined()) {
+                  test.release();
+                  outcomes.put(entry.getKey(), Outcome.RELEASED);
+               } else {
+                  outcomes.put(entry.getKey(), Outcome.UNCHANGED);
+               }
+            }
+            bc.commit();
+         } finally {
+            bulkStreaks = null;
+            bc.abort();
+         }
+      }
+
+   }
+
+   /**
+    * Whether the quarantine is enabled for a build depends on the
+    * configuration of its job
+    */
+   @Extension
+   public static class SaveableListenerImpl extends SaveableListener {
+      @Override
+      public void onChange(Saveable o, XmlFile file) {
+         if (o instanceof Job) {
+            Data.configVersion++;
+         }
+      }
    }
 
    @Extension
@@ -0,0 +1,96 @@
+package org.jenkinsci.plugins.quarantine;
+
+import hudson.model.Job;
+import hudson.tasks.junit.CaseResult;
+
+import java.util.Date;
+
+/**
+ * A row of the {@link QuarantinedTestsReport}. Holds just what the report
+ * shows, so the report doesn't keep the test results of every job in memory.
+ */
+public final class QuarantinedTest {
+   private final String jobName;
+   private final String jobDisplayName;
+   private final String jobUrl;
+   private final String testName;
+   private final String testUrl;
+   private final String status;
+   private final boolean passed;
+   private final String quarantinedBy;
+   private final long date;
+   private final String reason;
+   private final int passStreak;
+
+   QuarantinedTest(CaseResult result, QuarantineRegistry.Entry entry) {
+      Job<?, ?> job = result.getOwner().getParent();
+      this.jobName = job.getFullName();
+      this.jobDisplayName = job.getFullDisplayName();
+      this.jobUrl = job.getUrl();
+      this.testName = result.getFullName();
+      this.testUrl = result.getUrl();
+      this.status = String.valueOf(result.getStatus());
+      this.passed = result.isPassed();
+      this.quarantinedBy = entry.getQuarantinedBy();
+      this.date = entry.getDate();
+      this.reason = entry.getReason();
+      this.passStreak = entry.getPassStreak();
+   }
+
+   /**
+    * The full name of the job
+    */
+   public String getJobName() {
+      return jobName;
+   }
+
+   public String getJobDisplayName() {
+      return jobDisplayName;
+   }
+
+   public String getJobUrl() {
+      return jobUrl;
+   }
+
+   public String getTestName() {
+      return testName;
+   }
+
+   /**
+    * Relative to the test report of a build
+    */
+   public String getTestUrl() {
+      return testUrl;
+   }
+
+   public String getStatus() {
+      return status;
+   }
+
+   public boolean isPassed() {
+      return passed;
+   }
+
+   public String getQuarantinedBy() {
+      return quarantinedBy;
+   }
+
+   public String getQuarantinedByName() {
+      return UserDetailsCache.getDisplayName(quarantinedBy);
+   }
+
+   public Date getDate() {
+      return new Date(date);
+   }
+
+   public String getReason() {
+      return reason;
+   }
+
+   /**
+    * The number of builds the test passed in since it last failed
+    */
+   public int getPassStreak() {
+      return passStreak;
+   }
+}
@@ -1,25 +1,54 @@
 package org.jenkinsci.plugins.quarantine;
 
 import hudson.Extension;
+import hudson.Util;
 import hudson.model.TopLevelItem;
 import hudson.model.Hudson;
+import hudson.model.Item;
 import hudson.model.Job;
 import hudson.model.RootAction;
 import hudson.model.Run;
 import hudson.model.View;
-import hudson.tasks.junit.SuiteResult;
-import hudson.tasks.junit.TestResultAction;
 import hudson.tasks.junit.CaseResult;
 import hudson.tasks.test.TestResult;
+import jenkins.model.Jenkins;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.text.DateFormat;
+import java.text.SimpleDateFormat;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.TimeZone;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletResponse;
+
+import net.sf.json.util.JSONUtils;
 
 import org.kohsuke.stapler.Stapler;
 import org.kohsuke.stapler.StaplerRequest;
+import org.kohsuke.stapler.StaplerResponse;
+import org.kohsuke.stapler.interceptor.RequirePOST;
 
 @Extension
 public class QuarantinedTestsReport implements RootAction {
 
+   public static final int PAGE_SIZE = 50;
+
+   public enum Sort {
+      JOB, DATE, OWNER, PASSES
+   }
+
    public QuarantinedTestsReport() {
    }
 
@@ -38,53 +67,442 @@ public class QuarantinedTestsReport implements RootAction {
          if (view != null) {
             return view;
          }
+         // the rows that are loaded into a page of the report
+         String name = request.getParameter("view");
+         view = name != null ? Hudson.getInstance().getView(name) : null;
+         if (view != null) {
+            return view;
+         }
       }
       return Hudson.getInstance().getView("All");
    }
 
-   public QuarantineTestAction getAction(CaseResult test) {
-      return test.getTestAction(QuarantineTestAction.class);
+   public List<QuarantinedTest> getQuarantinedTests() {
+      return QuarantineReportIndex.get().getQuarantinedTests(getJobs());
    }
 
-   public List<CaseResult> getQuarantinedTests() {
-      ArrayList<CaseResult> list = new ArrayList<CaseResult>();
-      for (TopLevelItem item : getOwner().getItems()) {
-         if (item instanceof Job) {
-            Job job = (Job) item;
-            Run lb = job.getLastBuild();
-            while (lb != null && (lb.hasntStartedYet() || lb.isBuilding()))
-               lb = lb.getPreviousBuild();
+   /**
+    * The jobs of this view that have quarantined tests, in the order of their
+    * full names
+    */
+   private List<Job<?, ?>> getJobs() {
+      View view = getOwner();
+      List<Job<?, ?>> jobs = new ArrayList<Job<?, ?>>();
+      for (String name : QuarantineReportIndex.get().getJobNames()) {
+         // only finds the jobs the current user is allowed to see
+         Job<?, ?> job = Jenkins.getActiveInstance().getItemByFullName(name, Job.class);
+         if (job != null && isInView(view, job)) {
+            jobs.add(job);
+         }
+      }
+      return jobs;
+   }
+
+   /**
+    * A job inside a folder belongs to the views the folder is in
+    */
+   private static boolean isInView(View view, Item item) {
+      if (view == null) {
+         return true;
+      }
+      while (item.getParent() instanceof Item) {
+         item = (Item) item.getParent();
+      }
+      return item instanceof TopLevelItem && view.contains((TopLevelItem) item);
+   }
+
+   /**
+    * The page of the report asked for by the current request, as given by the
+    * offset, limit and sort parameters
+    */
+   public Page getPage() {
+      StaplerRequest request = Stapler.getCurrentRequest();
+      if (request == null) {
+         return getPage(0, PAGE_SIZE, Sort.JOB);
+      }
+      // the rows of a page are rendered by more than one view
+      Page page = (Page) request.getAttribute(Page.class.getName());
+      if (page == null) {
+         page = getPage(parseInt(request.getParameter("offset"), 0), parseInt(request.getParameter("limit"), PAGE_SIZE),
+                 parseSort(request.getParameter("sort")));
+         request.setAttribute(Page.class.getName(), page);
+      }
+      return page;
+   }
+
+   public Page getPage(int offset, int limit, Sort sort) {
+      List<Job<?, ?>> jobs = getJobs();
+      QuarantineReportIndex index = QuarantineReportIndex.get();
+      List<QuarantinedTest> tests = index.getQuarantinedTests(jobs);
+      List<String> incomplete = new ArrayList<String>();
+      for (Job<?, ?> job : jobs) {
+         if (!index.isLoaded(job)) {
+            incomplete.add(job.getFullDisplayName());
+         }
+      }
+      offset = Math.max(0, Math.min(offset, tests.size()));
+      limit = Math.max(1, limit);
+      int end = (int) Math.min(tests.size(), (long) offset + limit);
+      List<QuarantinedTest> first = first(tests, end, comparator(sort));
+      return new Page(new ArrayList<QuarantinedTest>(first.subList(offset, end)), offset, tests.size(), sort,
+              incomplete);
+   }
+
+   /**
+    * The first tests in the given order, without sorting all of them. Most
+    * requests are for the first page or two.
+    */
+   private static List<QuarantinedTest> first(List<QuarantinedTest> tests, int count,
+           Comparator<QuarantinedTest> order) {
+      if (count == 0) {
+         return Collections.emptyList();
+      }
+      PriorityQueue<QuarantinedTest> last = new PriorityQueue<QuarantinedTest>(count, Collections.reverseOrder(order));
+      for (QuarantinedTest test : tests) {
+         if (last.size() < count) {
+            last.add(test);
+         } else if (order.compare(test, last.peek()) < 0) {
+            last.poll();
+            last.add(test);
+         }
+      }
+      List<QuarantinedTest> first = new ArrayList<QuarantinedTest>(last);
+      Collections.sort(first, order);
+      return first;
+   }
 
-            if (lb != null && lb.getAction(TestResultAction.class) != null) {
-               for (SuiteResult suite : lb.getAction(TestResultAction.class).getResult().getSuites()) {
-                  for (CaseResult test : suite.getCases()) {
-                     QuarantineTestAction action = test.getTestAction(QuarantineTestAction.class);
-                     if (action != null && action.isQuarantined()) {
-                        list.add(test);
-                     }
-                  }
+   private Comparator<QuarantinedTest> comparator(Sort sort) {
+      final Comparator<QuarantinedTest> byJob = new Comparator<QuarantinedTest>() {
+         public int compare(QuarantinedTest a, QuarantinedTest b) {
+            int result = a.getJobDisplayName().compareToIgnoreCase(b.getJobDisplayName());
+            return result != 0 ? result : a.getTestName().compareTo(b.getTestName());
+         }
+      };
+      switch (sort) {
+         case DATE:
+            return new Comparator<QuarantinedTest>() {
+               public int compare(QuarantinedTest a, QuarantinedTest b) {
+                  int result = a.getDate().compareTo(b.getDate());
+                  return result != 0 ? result : byJob.compare(a, b);
                }
+            };
+         case OWNER:
+            return new Comparator<QuarantinedTest>() {
+               public int compare(QuarantinedTest a, QuarantinedTest b) {
+                  int result = String.valueOf(a.getQuarantinedByName()).compareToIgnoreCase(
+                          String.valueOf(b.getQuarantinedByName()));
+                  return result != 0 ? result : byJob.compare(a, b);
+               }
+            };
+         case PASSES:
+            return new Comparator<QuarantinedTest>() {
+               public int compare(QuarantinedTest a, QuarantinedTest b) {
+                  int result = Integer.compare(b.getPassStreak(), a.getPassStreak());
+                  return result != 0 ? result : byJob.compare(a, b);
+               }
+            };
+         default:
+            return byJob;
+      }
+   }
+
+   private static int parseInt(String value, int defaultValue) {
+      try {
+         return value != null ? Integer.parseInt(value) : defaultValue;
+      } catch (NumberFormatException e) {
+         return defaultValue;
+      }
+   }
+
+   private static Sort parseSort(String value) {
+      for (Sort sort : Sort.values()) {
+         if (sort.name().equalsIgnoreCase(value)) {
+            return sort;
+         }
+      }
+      return Sort.JOB;
+   }
+
+   /**
+    * Renders just the rows of a page, for loading later pages into the table
+    * on demand
+    */
+   public void doRows(StaplerRequest req, StaplerResponse rsp) throws IOException, ServletException {
+      Page page = getPage();
+      if (page.hasMore()) {
+         rsp.setHeader("X-Next-Offset", String.valueOf(page.getNextOffset()));
+      }
+      rsp.setContentType("text/html;charset=UTF-8");
+      req.getView(this, "tableRows.jelly").forward(req, rsp);
+   }
+
+   /**
+    * All quarantined tests of this view as JSON, written out job by job
+    */
+   public void doJson(StaplerRequest req, StaplerResponse rsp) throws IOException {
+      List<Job<?, ?>> jobs = getJobs();
+      if (isNotModified(req, rsp, jobs)) {
+         return;
+      }
+      rsp.setContentType("application/json;charset=UTF-8");
+      DateFormat format = isoDateFormat();
+      PrintWriter out = rsp.getWriter();
+      out.write("{\"tests\":[");
+      boolean first = true;
+      QuarantineReportIndex index = QuarantineReportIndex.get();
+      for (Job<?, ?> job : jobs) {
+         for (QuarantinedTest test : index.getQuarantinedTests(job)) {
+            if (!first) {
+               out.write(',');
             }
+            first = false;
+            out.write("{\"job\":" + quoteJson(test.getJobName()));
+            out.write(",\"test\":" + quoteJson(test.getTestName()));
+            out.write(",\"status\":" + quoteJson(test.getStatus()));
+            out.write(",\"passed\":" + test.isPassed());
+            out.write(",\"quarantinedBy\":" + quoteJson(test.getQuarantinedBy()));
+            out.write(",\"date\":" + quoteJson(format.format(test.getDate())));
+            out.write(",\"reason\":" + quoteJson(test.getReason()));
+            out.write(",\"passStreak\":" + test.getPassStreak() + "}");
          }
       }
-      return list;
+      out.write("]}");
+      out.flush();
    }
 
-   public int getNumberOfSuccessivePasses(CaseResult test) {
-      int count = 0;
+   /**
+    * All quarantined tests of this view as CSV, written out job by job
+    */
+   public void doCsv(StaplerRequest req, StaplerResponse rsp) throws IOException {
+      List<Job<?, ?>> jobs = getJobs();
+      if (isNotModified(req, rsp, jobs)) {
+         return;
+      }
+      rsp.setContentType("text/csv;charset=UTF-8");
+      rsp.setHeader("Content-Disposition", "attachment; filename=quarantine.csv");
+      DateFormat format = isoDateFormat();
+      PrintWriter out = rsp.getWriter();
+      out.write("job,test,status,passed,quarantinedBy,date,reason,passStreak\r\n");
+      QuarantineReportIndex index = QuarantineReportIndex.get();
+      for (Job<?, ?> job : jobs) {
+         for (QuarantinedTest test : index.getQuarantinedTests(job)) {
+            out.write(quoteCsv(test.getJobName()) + ',' + quoteCsv(test.getTestName()) + ','
+                    + quoteCsv(test.getStatus()) + ',' + test.isPassed() + ','
+                    + quoteCsv(test.getQuarantinedBy()) + ',' + format.format(test.getDate()) + ','
+                    + quoteCsv(test.getReason()) + ',' + test.getPassStreak() + "\r\n");
+         }
+      }
+      out.flush();
+   }
 
-      for (TestResult result : test.getHistory().getList()) {
-         if (result.isPassed()) {
-            count++;
-         } else {
-            return count;
+   /**
+    * Quarantines or releases many tests of the last completed build of a job
+    * at once. Takes the full name of the job, the tests by id or full name
+    * (repeated or one per line) and/or a prefix, and a reason; leaving out
+    * the reason with release=true releases the tests instead. Answers with
+    * what became of each test.
+    */
+   @RequirePOST
+   public void doBulk(StaplerRequest req, StaplerResponse rsp) throws IOException {
+      String user = Jenkins.getAuthentication().getName();
+      if ("anonymous".equals(user)) {
+         rsp.sendError(HttpServletResponse.SC_FORBIDDEN, "log in to quarantine tests");
+         return;
+      }
+      String jobName = Util.fixEmptyAndTrim(req.getParameter("job"));
+      if (jobName == null) {
+         rsp.sendError(HttpServletResponse.SC_BAD_REQUEST, "give the job to change");
+         return;
+      }
+      Job<?, ?> job = Jenkins.getActiveInstance().getItemByFullName(jobName, Job.class);
+      Run<?, ?> build = job != null ? job.getLastCompletedBuild() : null;
+      QuarantineTestDataPublisher.Data data = build != null ? QuarantineTestDataPublisher.Data.forBuild(build) : null;
+      if (data == null) {
+         rsp.sendError(HttpServletResponse.SC_NOT_FOUND, "no quarantinable test results for job " + jobName);
+         return;
+      }
+
+      List<String> tests = new ArrayList<String>();
+      String[] values = req.getParameterValues("tests");
+      if (values != null) {
+         for (String value : values) {
+            for (String test : value.split("[\\r\\n]+")) {
+               if (!test.trim().isEmpty()) {
+                  tests.add(test.trim());
+               }
+            }
+         }
+      }
+      String prefix = Util.fixEmptyAndTrim(req.getParameter("prefix"));
+      if (tests.isEmpty() && prefix == null) {
+         rsp.sendError(HttpServletResponse.SC_BAD_REQUEST, "give the tests to change and/or a prefix");
+         return;
+      }
+      boolean release = Boolean.parseBoolean(req.getParameter("release"));
+      Map<String, QuarantineTestDataPublisher.Data.Outcome> outcomes = data.changeAll(tests, prefix,
+              release ? null : user, Util.fixEmptyAndTrim(req.getParameter("reason")));
+
+      rsp.setContentType("application/json;charset=UTF-8");
+      PrintWriter out = rsp.getWriter();
+      out.write("{\"job\":" + quoteJson(job.getFullName()) + ",\"build\":" + build.getNumber() + ",\"tests\":{");
+      boolean first = true;
+      for (Map.Entry<String, QuarantineTestDataPublisher.Data.Outcome> outcome : outcomes.entrySet()) {
+         if (!first) {
+            out.write(',');
          }
+         first = false;
+         out.write(quoteJson(outcome.getKey()) + ":" + quoteJson(outcome.getValue().name().toLowerCase(Locale.ENGLISH)));
+      }
+      out.write("}}");
+      out.flush();
+   }
+
+   /**
+    * The tag is a hash of what is exported: the jobs the user may see, their
+    * tests and the names of the users who quarantined them. A build that
+    * changes none of that keeps the tag.
+    */
+   private boolean isNotModified(StaplerRequest req, StaplerResponse rsp, List<Job<?, ?>> jobs) {
+      QuarantineReportIndex index = QuarantineReportIndex.get();
+      int hash = 1;
+      for (Job<?, ?> job : jobs) {
+         hash = 31 * hash + job.getFullName().hashCode();
+         for (QuarantinedTest test : index.getQuarantinedTests(job)) {
+            hash = 31 * hash + Arrays.hashCode(new Object[] { test.getTestName(), test.getStatus(), test.isPassed(),
+                    test.getQuarantinedBy(), test.getQuarantinedByName(), test.getDate(), test.getReason(),
+                    test.getPassStreak() });
+         }
+      }
+      String etag = "\"" + Integer.toHexString(hash) + "\"";
+      rsp.setHeader("ETag", etag);
+      if (etag.equals(req.getHeader("If-None-Match"))) {
+         rsp.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+         return true;
+      }
+      return false;
+   }
+
+   private static DateFormat isoDateFormat() {
+      DateFormat format = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss'Z'");
+      format.setTimeZone(TimeZone.getTimeZone("UTC"));
+      return format;
+   }
+
+   private static String quoteJson(String value) {
+      return value != null ? JSONUtils.quote(value) : "null";
+   }
+
+   private static String quoteCsv(String value) {
+      if (value == null) {
+         return "";
+      }
+      if (value.indexOf(',') < 0 && value.indexOf('"') < 0 && value.indexOf('\n') < 0 && value.indexOf('\r') < 0) {
+         return value;
+      }
+      return '"' + value.replace("\"", "\"\"") + '"';
+   }
+
+   /**
+    * Goes back through the builds until the test failed or did not run, which
+    * can mean loading the test results of many builds. The count is kept in
+    * the {@link QuarantineRegistry} once a test is in quarantine.
+    */
+   static int countSuccessivePasses(TestResult test) {
+      int count = 0;
+      // the previous result is looked up one build at a time, where the
+      // history of the test would load all builds before the first check
+      for (TestResult result = test; result != null && result.isPassed(); result = result.getPreviousResult()) {
+         count++;
       }
       return count;
    }
 
+   /**
+    * The pass streaks of many tests by id, going back through the builds once
+    * for all of them rather than once for each
+    */
+   static Map<String, Integer> countSuccessivePasses(Collection<CaseResult> tests) {
+      Map<String, Integer> counts = new HashMap<String, Integer>();
+      Map<String, TestResult> counting = new HashMap<String, TestResult>();
+      for (CaseResult test : tests) {
+         counts.put(test.getId(), 0);
+         counting.put(test.getId(), test);
+      }
+      // a build at a time, so each build's test result is loaded once
+      while (!counting.isEmpty()) {
+         for (Iterator<Map.Entry<String, TestResult>> it = counting.entrySet().iterator(); it.hasNext();) {
+            Map.Entry<String, TestResult> entry = it.next();
+            if (entry.getValue() == null || !entry.getValue().isPassed()) {
+               it.remove();
+               continue;
+            }
+            counts.put(entry.getKey(), counts.get(entry.getKey()) + 1);
+            entry.setValue(entry.getValue().getPreviousResult());
+         }
+      }
+      return counts;
+   }
+
+   public MailQueue getMailQueue() {
+      return MailQueue.get();
+   }
+
+   public BuildSaver getBuildSaver() {
+      return BuildSaver.get();
+   }
+
    public String getDisplayName() {
       return Messages.QuarantinedTestsReport_DisplayName();
    }
 
+   /**
+    * A part of the report
+    */
+   public static class Page {
+      private final List<QuarantinedTest> tests;
+      private final int offset;
+      private final int total;
+      private final Sort sort;
+      private final List<String> incompleteJobs;
+
+      Page(List<QuarantinedTest> tests, int offset, int total, Sort sort, List<String> incompleteJobs) {
+         this.tests = tests;
+         this.offset = offset;
+         this.total = total;
+         this.sort = sort;
+         this.incompleteJobs = incompleteJobs;
+      }
+
+      public List<QuarantinedTest> getTests() {
+         return tests;
+      }
+
+      public int getOffset() {
+         return offset;
+      }
+
+      public int getTotal() {
+         return total;
+      }
+
+      public Sort getSort() {
+         return sort;
+      }
+
+      public int getNextOffset() {
+         return offset + tests.size();
+      }
+
+      public boolean hasMore() {
+         return getNextOffset() < total;
+      }
+
+      /**
+       * The jobs whose quarantined tests were not known in time to be included
+       */
+      public List<String> getIncompleteJobs() {
+         return incompleteJobs;
+      }
+   }
+
 }
@@ -0,0 +1,113 @@
+package org.jenkinsci.plugins.quarantine;
+
+import hudson.Extension;
+import hudson.XmlFile;
+import hudson.model.Saveable;
+import hudson.model.User;
+import hudson.model.listeners.SaveableListener;
+import hudson.tasks.Mailer;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Remembers the display names and email addresses of the users who
+ * quarantined tests. Looking a user up can be expensive with some security
+ * realms, and the same few users are looked up for every row of the report
+ * and every email. Entries expire after a while and are dropped as soon as
+ * any user is saved.
+ */
+public class UserDetailsCache {
+
+   static int MAX_SIZE = Integer.getInteger(UserDetailsCache.class.getName() + ".size", 1000);
+   static long TTL = Long.getLong(UserDetailsCache.class.getName() + ".ttl", TimeUnit.MINUTES.toMillis(10));
+
+   private static final Map<String, Details> cache = new LinkedHashMap<String, Details>(16, 0.75f, true) {
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<String, Details> eldest) {
+         return size() > MAX_SIZE;
+      }
+   };
+
+   private UserDetailsCache() {
+   }
+
+   /**
+    * The display name of the user with the given id, or the id if there is no
+    * such user
+    */
+   public static String getDisplayName(String userId) {
+      if (userId == null) {
+         return null;
+      }
+      Details details = get(userId);
+      synchronized (details) {
+         if (!details.hasDisplayName) {
+            User user = User.get(userId, false, Collections.emptyMap());
+            details.displayName = user != null ? user.getDisplayName() : userId;
+            details.hasDisplayName = true;
+         }
+         return details.displayName;
+      }
+   }
+
+   /**
+    * The email address of the given user, or null if it isn't known
+    */
+   public static String getEmailAddress(String username) {
+      Details details = get(username);
+      synchronized (details) {
+         if (!details.hasAddress) {
+            Mailer.UserProperty p = User.get(username).getProperty(Mailer.UserProperty.class);
+            details.address = p != null ? p.getAddress() : null;
+            details.hasAddress = true;
+         }
+         return details.address;
+      }
+   }
+
+   private static Details get(String name) {
+      synchronized (cache) {
+         Details details = cache.get(name);
+         if (details == null || details.expires < System.currentTimeMillis()) {
+            details = new Details(System.currentTimeMillis() + TTL);
+            cache.put(name, details);
+         }
+         return details;
+      }
+   }
+
+   static void invalidate() {
+      synchronized (cache) {
+         cache.clear();
+      }
+   }
+
+   private static class Details {
+      private final long expires;
+      private boolean hasDisplayName;
+      private String displayName;
+      private boolean hasAddress;
+      private String address;
+
+      Details(long expires) {
+         this.expires = expires;
+      }
+   }
+
+   /**
+    * Users are looked up by id as well as by display name, so any change to a
+    * user clears the whole cache.
+    */
+   @Extension
+   public static class SaveableListenerImpl extends SaveableListener {
+      @Override
+      public void onChange(Saveable o, XmlFile file) {
+         if (o instanceof User) {
+            invalidate();
+         }
+      }
+   }
+}
@@ -0,0 +1,54 @@
+package org.jenkinsci.plugins.quarantine;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runners.model.Statement;
+import org.jvnet.hudson.test.RestartableJenkinsRule;
+import org.jvnet.mock_javamail.Mailbox;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class MailQueueTest {
+   private String address = "user1@mail.com";
+
+   @Rule
+   public RestartableJenkinsRule story = new RestartableJenkinsRule();
+
+   @Test
+   public void testWaitingEmailIsSentAfterRestart() {
+      final long retryDelay = MailQueue.RETRY_DELAY;
+      story.addStep(new Statement() {
+         @Override
+         public void evaluate() throws Throwable {
+            Mailbox.clearAll();
+            Mailbox.get(address).setError(true);
+            // not retried before the restart
+            MailQueue.RETRY_DELAY = TimeUnit.HOURS.toMillis(1);
+
+            MailQueue queue = MailQueue.get();
+            queue.addAll(Arrays.asList(new MailQueue.PendingMail(address, "subject", "content")));
+            long deadline = System.currentTimeMillis() + 10000;
+            while (queue.getPending().get(0).getAttempts() == 0 && System.currentTimeMillis() < deadline) {
+               Thread.sleep(10);
+            }
+            assertEquals(1, queue.getPending().get(0).getAttempts());
+            Mailbox.get(address).setError(false);
+         }
+      });
+      story.addStep(new Statement() {
+         @Override
+         public void evaluate() throws Throwable {
+            try {
+               assertTrue(MailQueue.get().waitUntilEmpty(10000));
+               assertEquals(1, Mailbox.get(address).size());
+            } finally {
+               MailQueue.RETRY_DELAY = retryDelay;
+            }
+         }
+      });
+   }
+}
@@ -23,11 +23,16 @@
  */
 package org.jenkinsci.plugins.quarantine;
 
+import hudson.FilePath;
+import hudson.XmlFile;
 import hudson.model.FreeStyleBuild;
 import hudson.model.Result;
+import hudson.model.Run;
+import hudson.model.TaskListener;
 import hudson.model.Descriptor;
 import hudson.model.FreeStyleProject;
 import hudson.model.User;
+import hudson.model.queue.QueueTaskFuture;
 import hudson.security.FullControlOnceLoggedInAuthorizationStrategy;
 import hudson.tasks.Mailer;
 import hudson.tasks.junit.TestDataPublisher;
@@ -37,27 +42,44 @@ import hudson.tasks.junit.CaseResult;
 import hudson.tasks.junit.JUnitResultArchiver;
 import hudson.tasks.junit.TestResultAction;
 import hudson.util.DescribableList;
+import org.jenkinsci.plugins.quarantine.QuarantineTestDataPublisher.Data.Outcome;
 
+import org.apache.commons.io.FileUtils;
 import org.junit.Before;
 import org.junit.Ignore;
 import org.junit.Rule;
 import org.jvnet.hudson.test.JenkinsRule;
+import org.jvnet.hudson.test.MockFolder;
 import org.jvnet.hudson.test.TestBuilder;
+import org.jvnet.hudson.test.TestExtension;
 
 import hudson.Launcher;
 import hudson.model.BuildListener;
 import hudson.model.AbstractBuild;
 
+import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.Field;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 
 import org.jvnet.mock_javamail.*;
 
 import javax.mail.Message;
 
+import org.apache.commons.jelly.JellyContext;
+import org.xml.sax.InputSource;
+
 import org.junit.Test;
 
 import static org.junit.Assert.*;
+import static org.junit.Assume.assumeTrue;
 
 public class QuarantineCoreTest {
 
@@ -67,23 +89,28 @@ public class QuarantineCoreTest {
    private String projectName = "x";
    protected String quarantineText = "quarantineReason";
    protected String user1Mail = "user1@mail.com";
+   protected String user2Mail = "user2@mail.com";
    protected FreeStyleProject project;
 
    @Before
    public void setUp() throws Exception {
       java.util.logging.Logger.getLogger("com.gargoylesoftware.htmlunit").setLevel(java.util.logging.Level.SEVERE);
       project = j.createFreeStyleProject(projectName);
+      addQuarantinePublisher(project);
+
+      j.jenkins.setAuthorizationStrategy(new FullControlOnceLoggedInAuthorizationStrategy());
+      j.jenkins.setSecurityRealm(j.createDummySecurityRealm());
+      User u = User.get("user1");
+      u.addProperty(new Mailer.UserProperty(user1Mail));
+   }
+
+   protected void addQuarantinePublisher(FreeStyleProject project) throws Exception {
       DescribableList<TestDataPublisher, Descriptor<TestDataPublisher>> publishers = new DescribableList<>(
               project);
       publishers.add(new QuarantineTestDataPublisher());
       QuarantinableJUnitResultArchiver archiver = new QuarantinableJUnitResultArchiver("*.xml");
       archiver.setTestDataPublishers(publishers);
       project.getPublishersList().add(archiver);
-
-      j.jenkins.setAuthorizationStrategy(new FullControlOnceLoggedInAuthorizationStrategy());
-      j.jenkins.setSecurityRealm(j.createDummySecurityRealm());
-      User u = User.get("user1");
-      u.addProperty(new Mailer.UserProperty(user1Mail));
    }
 
    protected FreeStyleBuild addBuildFailure() throws Exception {
@@ -220,6 +247,404 @@ public class QuarantineCoreTest {
       }
    }
 
+   /**
+    * Makes the job look like it was built before the quarantine was kept in
+    * a registry, so the next build goes back in the build history
+    */
+   private void forgetQuarantineRegistry() throws Exception {
+      assertTrue(new File(project.getRootDir(), "quarantine.xml").delete());
+      // the registry of a job is cached until the job moves
+      project.renameTo(project.getName() + "-old");
+   }
+
+   @Test
+   public void testQuarantineIsResolvedFromHistoryInOnePass() throws Exception {
+      TestResult tr = getResultsFromJUnitResult("junit-1-failure.xml");
+      tr.getSuite("SuiteA").getCase("TestB").getTestAction(QuarantineTestAction.class).quarantine("user1", "reason");
+      tr.getSuite("SuiteB").getCase("TestA").getTestAction(QuarantineTestAction.class).quarantine("user1", "reason");
+      runBuildWithJUnitResult("junit-dummy.xml");
+      runBuildWithJUnitResult("junit-dummy.xml");
+      forgetQuarantineRegistry();
+
+      FreeStyleBuild build = runBuildWithJUnitResult("junit-1-failure.xml");
+
+      // none of the tests ran in the builds in between
+      j.assertLogContains("resolved 4 of 4 tests without a previous result in 3 builds", build);
+      tr = build.getAction(TestResultAction.class).getResult();
+      assertTrue(tr.getSuite("SuiteA").getCase("TestB").getTestAction(QuarantineTestAction.class).isQuarantined());
+      assertTrue(tr.getSuite("SuiteB").getCase("TestA").getTestAction(QuarantineTestAction.class).isQuarantined());
+      assertFalse(tr.getSuite("SuiteA").getCase("TestA").getTestAction(QuarantineTestAction.class).isQuarantined());
+      assertEquals(2, QuarantineRegistry.forJob(project).getEntries().size());
+   }
+
+   @Test
+   public void testHistoryIsOnlyFollowedUpToTheLookBackDepth() throws Exception {
+      QuarantineConfiguration.get().setLookBackDepth(2);
+      TestResult tr = getResultsFromJUnitResult("junit-1-failure.xml");
+      tr.getSuite("SuiteA").getCase("TestB").getTestAction(QuarantineTestAction.class).quarantine("user1", "reason");
+      runBuildWithJUnitResult("junit-dummy.xml");
+      runBuildWithJUnitResult("junit-dummy.xml");
+      forgetQuarantineRegistry();
+
+      FreeStyleBuild build = runBuildWithJUnitResult("junit-1-failure.xml");
+
+      j.assertLogContains("stopped going back in build history after 2 builds", build);
+      tr = build.getAction(TestResultAction.class).getResult();
+      assertFalse(tr.getSuite("SuiteA").getCase("TestB").getTestAction(QuarantineTestAction.class).isQuarantined());
+   }
+
+   @Test
+   public void testHistoryIsOnlyFollowedUntilTheLookBackTimeout() throws Exception {
+      QuarantineConfiguration.get().setLookBackTimeout(1);
+      TestResult tr = getResultsFromJUnitResult("junit-1-failure.xml");
+      tr.getSuite("SuiteA").getCase("TestB").getTestAction(QuarantineTestAction.class).quarantine("user1", "reason");
+      final TestResultAction slow = runBuildWithJUnitResult("junit-dummy.xml").getAction(TestResultAction.class);
+      runBuildWithJUnitResult("junit-dummy.xml");
+      forgetQuarantineRegistry();
+
+      // loading the results of the build in the middle takes longer than the
+      // timeout
+      final CountDownLatch locked = new CountDownLatch(1);
+      Thread holder = new Thread() {
+         @Override
+         public void run() {
+            synchronized (slow) {
+               locked.countDown();
+               try {
+                  Thread.sleep(5000);
+               } catch (InterruptedException e) {
+                  // let go
+               }
+            }
+         }
+      };
+      holder.start();
+      locked.await();
+      FreeStyleBuild build = runBuildWithJUnitResult("junit-1-failure.xml");
+      holder.join();
+
+      j.assertLogContains("stopped going back in build history after 1 seconds", build);
+      tr = build.getAction(TestResultAction.class).getResult();
+      assertFalse(tr.getSuite("SuiteA").getCase("TestB").getTestAction(QuarantineTestAction.class).isQuarantined());
+   }
+
+   public static class InterruptingTestDataPublisher extends TestDataPublisher {
+      @Override
+      public TestResultAction.Data contributeTestData(Run<?, ?> run, FilePath workspace, Launcher launcher,
+                                                      TaskListener listener, TestResult testResult) {
+         // as if the build was aborted
+         Thread.currentThread().interrupt();
+         return null;
+      }
+
+      @TestExtension("testGoingBackInHistoryStopsWhenBuildIsInterrupted")
+      public static class DescriptorImpl extends Descriptor<TestDataPublisher> {
+         @Override
+         public String getDisplayName() {
+            return "interrupting";
+         }
+      }
+   }
+
+   @Test
+   public void testGoingBackInHistoryStopsWhenBuildIsInterrupted() throws Exception {
+      TestResult tr = getResultsFromJUnitResult("junit-1-failure.xml");
+      tr.getSuite("SuiteA").getCase("TestB").getTestAction(QuarantineTestAction.class).quarantine("user1", "reason");
+      runBuildWithJUnitResult("junit-dummy.xml");
+      forgetQuarantineRegistry();
+      QuarantinableJUnitResultArchiver archiver = project.getPublishersList().get(QuarantinableJUnitResultArchiver.class);
+      archiver.getTestDataPublishers().replaceBy(Arrays.<TestDataPublisher>asList(
+              new InterruptingTestDataPublisher(), new QuarantineTestDataPublisher()));
+
+      FreeStyleBuild build = runBuildWithJUnitResult("junit-1-failure.xml");
+
+      j.assertLogContains("aborted going back in build history", build);
+      assertFalse(QuarantineRegistry.forJob(project).isSeeded());
+   }
+
+   @Test
+   public void testQuarantineIsKeptInJobRegistry() throws Exception {
+      FreeStyleBuild build = runBuildWithJUnitResult("junit-1-failure.xml");
+      TestResult tr = build.getAction(TestResultAction.class).getResult();
+      tr.getSuite("SuiteA").getCase("TestB").getTestAction(QuarantineTestAction.class).quarantine("user1", "reason");
+
+      QuarantineRegistry registry = QuarantineRegistry.forJob(project);
+      assertEquals(1, registry.getEntries().size());
+      assertEquals("reason", registry.get(tr.getSuite("SuiteA").getCase("TestB").getId()).getReason());
+
+      // the quarantine no longer depends on the build history
+      build.delete();
+      tr = getResultsFromJUnitResult("junit-1-failure.xml");
+      assertTrue(tr.getSuite("SuiteA").getCase("TestB").getTestAction(QuarantineTestAction.class).isQuarantined());
+      assertEquals(Result.SUCCESS, tr.getOwner().getResult());
+   }
+
+   @Test
+   public void testChangesMadeWhileSeedingAreKept() throws Exception {
+      QuarantineRegistry registry = QuarantineRegistry.forJob(project);
+      assertFalse(registry.isSeeded());
+      QuarantineRegistry.Entry entry = new QuarantineRegistry.Entry("user1", "reason", 0, 0);
+
+      // as if users changed the quarantine while a build walks the history
+      registry.quarantine("junit/SuiteA/TestA", entry);
+      registry.release("junit/SuiteA/TestB");
+      Map<String, QuarantineRegistry.Entry> history = new HashMap<String, QuarantineRegistry.Entry>();
+      history.put("junit/SuiteA/TestB", entry);
+      registry.seed(history);
+
+      assertTrue(registry.isSeeded());
+      assertEquals(Collections.singleton("junit/SuiteA/TestA"), registry.getEntries().keySet());
+
+      // a build that seeded at the same time does not undo them
+      registry.seed(history);
+      assertEquals(Collections.singleton("junit/SuiteA/TestA"), registry.getEntries().keySet());
+   }
+
+   @Test
+   public void testManyTestsCanBeQuarantinedAtOnce() throws Exception {
+      FreeStyleBuild build = runBuildWithJUnitResult("junit-1-failure.xml");
+      QuarantineTestDataPublisher.Data data = QuarantineTestDataPublisher.Data.forBuild(build);
+
+      Map<String, Outcome> outcomes = data.changeAll(Arrays.asList("SuiteB.TestA", "SuiteC.TestA"), "SuiteA.",
+              "user1", quarantineText);
+      assertEquals(Outcome.QUARANTINED, outcomes.get("SuiteA.TestA"));
+      assertEquals(Outcome.QUARANTINED, outcomes.get("SuiteA.TestB"));
+      assertEquals(Outcome.QUARANTINED, outcomes.get("SuiteB.TestA"));
+      assertEquals(Outcome.NOT_FOUND, outcomes.get("SuiteC.TestA"));
+      assertEquals(3, new QuarantinedTestsReport().getQuarantinedTests().size());
+
+      outcomes = data.changeAll(Arrays.asList("SuiteA.TestA", "SuiteB.TestB"), null, null, null);
+      assertEquals(Outcome.RELEASED, outcomes.get("SuiteA.TestA"));
+      assertEquals(Outcome.UNCHANGED, outcomes.get("SuiteB.TestB"));
+      assertEquals(2, new QuarantinedTestsReport().getQuarantinedTests().size());
+
+      TestResult tr = getResultsFromJUnitResult("junit-1-failure.xml");
+      assertFalse(tr.getSuite("SuiteA").getCase("TestA").getTestAction(QuarantineTestAction.class).isQuarantined());
+      assertTrue(tr.getSuite("SuiteA").getCase("TestB").getTestAction(QuarantineTestAction.class).isQuarantined());
+      assertTrue(tr.getSuite("SuiteB").getCase("TestA").getTestAction(QuarantineTestAction.class).isQuarantined());
+   }
+
+   @Test
+   public void testQuarantineChangesAreSavedTogether() throws Exception {
+      FreeStyleBuild build = runBuildWithJUnitResult("junit-1-failure.xml");
+      TestResult tr = build.getAction(TestResultAction.class).getResult();
+      QuarantineTestDataPublisher.Data data = QuarantineTestDataPublisher.Data.forBuild(build);
+      BuildSaver saver = BuildSaver.get();
+      long delay = BuildSaver.DELAY;
+      BuildSaver.DELAY = 60000;
+      try {
+         tr.getSuite("SuiteA").getCase("TestA").getTestAction(QuarantineTestAction.class).quarantine("user1", quarantineText);
+         data.save();
+         tr.getSuite("SuiteA").getCase("TestB").getTestAction(QuarantineTestAction.class).quarantine("user1", quarantineText);
+         data.save();
+         assertEquals(1, saver.getPendingCount());
+         assertFalse(new File(build.getRootDir(), "quarantine.xml").exists());
+
+         saver.flush();
+         assertEquals(0, saver.getPendingCount());
+         assertTrue(new XmlFile(new File(build.getRootDir(), "quarantine.xml")).asString().contains(quarantineText));
+         // the quarantine state has a file of its own
+         build.save();
+         assertFalse(new XmlFile(new File(build.getRootDir(), "build.xml")).asString().contains(quarantineText));
+      } finally {
+         BuildSaver.DELAY = delay;
+      }
+   }
+
+   @Test
+   public void testQuarantineStateIsMovedOutOfBuildXml() throws Exception {
+      FreeStyleBuild build = runBuildWithJUnitResult("junit-1-failure.xml");
+      TestResult tr = build.getAction(TestResultAction.class).getResult();
+      tr.getSuite("SuiteA").getCase("TestB").getTestAction(QuarantineTestAction.class).quarantine("user1", quarantineText);
+      BuildSaver.get().flush();
+
+      // as written by a version of the plugin that kept the state in build.xml
+      QuarantineTestDataPublisher.Data data = QuarantineTestDataPublisher.Data.forBuild(build);
+      Field quarantines = QuarantineTestDataPublisher.Data.class.getDeclaredField("quarantines");
+      quarantines.setAccessible(true);
+      quarantines.set(data, new HashMap<String, QuarantineTestAction>(data.getQuarantines()));
+      build.save();
+      File quarantineXml = new File(build.getRootDir(), "quarantine.xml");
+      File buildXml = new File(build.getRootDir(), "build.xml");
+      assertTrue(quarantineXml.delete());
+      assertTrue(new XmlFile(buildXml).asString().contains(quarantineText));
+
+      j.jenkins.reload();
+      build = j.jenkins.getItemByFullName(projectName, FreeStyleProject.class).getBuildByNumber(build.getNumber());
+      tr = build.getAction(TestResultAction.class).getResult();
+      assertTrue(tr.getSuite("SuiteA").getCase("TestB").getTestAction(QuarantineTestAction.class).isQuarantined());
+      BuildSaver.get().flush();
+      assertTrue(new XmlFile(quarantineXml).asString().contains(quarantineText));
+      assertFalse(new XmlFile(buildXml).asString().contains(quarantineText));
+
+      j.jenkins.reload();
+      build = j.jenkins.getItemByFullName(projectName, FreeStyleProject.class).getBuildByNumber(build.getNumber());
+      tr = build.getAction(TestResultAction.class).getResult();
+      assertTrue(tr.getSuite("SuiteA").getCase("TestB").getTestAction(QuarantineTestAction.class).isQuarantined());
+      assertEquals(quarantineText, tr.getSuite("SuiteA").getCase("TestB").getTestAction(QuarantineTestAction.class).getReason());
+   }
+
+   @Test
+   public void testBuildsAreWrittenOnShutdownAndRightAwayAfter() throws Exception {
+      FreeStyleBuild build = runBuildWithJUnitResult("junit-1-failure.xml");
+      TestResult tr = build.getAction(TestResultAction.class).getResult();
+      QuarantineTestDataPublisher.Data data = QuarantineTestDataPublisher.Data.forBuild(build);
+      BuildSaver saver = BuildSaver.get();
+      long delay = BuildSaver.DELAY;
+      BuildSaver.DELAY = 60000;
+      try {
+         tr.getSuite("SuiteA").getCase("TestA").getTestAction(QuarantineTestAction.class).quarantine("user1", "first");
+         data.save();
+         assertEquals(1, saver.getPendingCount());
+
+         BuildSaver.shutdown();
+         assertEquals(0, saver.getPendingCount());
+         XmlFile file = new XmlFile(new File(build.getRootDir(), "quarantine.xml"));
+         assertTrue(file.asString().contains("first"));
+
+         tr.getSuite("SuiteA").getCase("TestB").getTestAction(QuarantineTestAction.class).quarantine("user1", "second");
+         data.save();
+         assertEquals(0, saver.getPendingCount());
+         assertTrue(file.asString().contains("second"));
+         assertSame(saver, BuildSaver.get());
+      } finally {
+         BuildSaver.DELAY = delay;
+      }
+   }
+
+   @Test
+   public void testQuarantineDetailsAreSharedBetweenBuilds() throws Exception {
+      TestResult tr1 = getResultsFromJUnitResult("junit-1-failure.xml");
+      QuarantineTestAction action1 = tr1.getSuite("SuiteA").getCase("TestB").getTestAction(QuarantineTestAction.class);
+      action1.quarantine("user1", quarantineText);
+
+      TestResult tr2 = getResultsFromJUnitResult("junit-1-failure.xml");
+      QuarantineTestAction action2 = tr2.getSuite("SuiteA").getCase("TestB").getTestAction(QuarantineTestAction.class);
+      assertNotSame(action1, action2);
+      assertSame(action1.getDetails(), action2.getDetails());
+      assertEquals(quarantineText, action2.getReason());
+   }
+
+   @Test
+   public void testUnquarantinedTestKeepsItsAction() throws Exception {
+      TestResult tr = getResultsFromJUnitResult("junit-1-failure.xml");
+      CaseResult test = tr.getSuite("SuiteA").getCase("TestB");
+
+      QuarantineTestAction action = test.getTestAction(QuarantineTestAction.class);
+      assertSame(action, test.getTestAction(QuarantineTestAction.class));
+
+      action.quarantine("user1", quarantineText);
+      assertSame(action, test.getTestAction(QuarantineTestAction.class));
+      assertTrue(test.getTestAction(QuarantineTestAction.class).isQuarantined());
+   }
+
+   @Test
+   public void testQuarantineActionsFollowJobConfiguration() throws Exception {
+      TestResult tr = getResultsFromJUnitResult("junit-1-failure.xml");
+      CaseResult test = tr.getSuite("SuiteA").getCase("TestB");
+      assertNotNull(test.getTestAction(QuarantineTestAction.class));
+
+      project.getPublishersList().remove(QuarantinableJUnitResultArchiver.class);
+      assertNull(test.getTestAction(QuarantineTestAction.class));
+   }
+
+   @Test
+   public void testQuarantineUnderLegacyTestIdIsFound() throws Exception {
+      FreeStyleBuild build = runBuildWithJUnitResult("junit-1-failure.xml");
+      TestResult tr = build.getAction(TestResultAction.class).getResult();
+      tr.getSuite("SuiteA").getCase("TestB").getTestAction(QuarantineTestAction.class).quarantine("user1", quarantineText);
+      QuarantineTestDataPublisher.Data.forBuild(build).save();
+      BuildSaver.get().flush();
+
+      // ids had no junit prefix before Hudson 1.347
+      XmlFile file = new XmlFile(new File(build.getRootDir(), "quarantine.xml"));
+      String xml = file.asString();
+      assertTrue(xml.contains("junit/SuiteA/TestB"));
+      FileUtils.writeStringToFile(file.getFile(), xml.replace("junit/SuiteA/TestB", "/SuiteA/TestB"), "UTF-8");
+
+      build.reload();
+      tr = build.getAction(TestResultAction.class).getResult();
+      assertTrue(tr.getSuite("SuiteA").getCase("TestB").getTestAction(QuarantineTestAction.class).isQuarantined());
+      assertFalse(tr.getSuite("SuiteA").getCase("TestA").getTestAction(QuarantineTestAction.class).isQuarantined());
+   }
+
+   @Test
+   public void testRegistryRulesOutTestsNotInQuarantine() throws Exception {
+      TestResult tr = getResultsFromJUnitResult("junit-1-failure.xml");
+      QuarantineRegistry registry = QuarantineRegistry.forJob(project);
+      assertTrue(registry.isEmpty());
+
+      CaseResult test = tr.getSuite("SuiteA").getCase("TestB");
+      test.getTestAction(QuarantineTestAction.class).quarantine("user1", quarantineText);
+      assertFalse(registry.isEmpty());
+      assertTrue(registry.mightContain(test.getId()));
+      assertFalse(registry.mightContain(tr.getSuite("SuiteA").getCase("TestA").getId()));
+
+      test.getTestAction(QuarantineTestAction.class).release();
+      assertTrue(registry.isEmpty());
+      assertFalse(registry.mightContain(test.getId()));
+   }
+
+   /**
+    * Holds up publishing until the test lets it carry on
+    */
+   public static class BlockingTestDataPublisher extends TestDataPublisher {
+      static final CountDownLatch started = new CountDownLatch(1);
+      static final CountDownLatch proceed = new CountDownLatch(1);
+      static volatile Run<?, ?> build;
+
+      @Override
+      public TestResultAction.Data contributeTestData(Run<?, ?> run, FilePath workspace, Launcher launcher,
+                                                      TaskListener listener, TestResult testResult)
+              throws InterruptedException {
+         build = run;
+         started.countDown();
+         proceed.await(30, TimeUnit.SECONDS);
+         return null;
+      }
+
+      @TestExtension("testBuildIsNotLockedWhilePublishing")
+      public static class DescriptorImpl extends Descriptor<TestDataPublisher> {
+         @Override
+         public String getDisplayName() {
+            return "blocking";
+         }
+      }
+   }
+
+   @Test
+   public void testBuildIsNotLockedWhilePublishing() throws Exception {
+      QuarantinableJUnitResultArchiver archiver = project.getPublishersList().get(QuarantinableJUnitResultArchiver.class);
+      archiver.getTestDataPublishers().add(new BlockingTestDataPublisher());
+      project.getBuildersList().add(new TestBuilder() {
+         public boolean perform(AbstractBuild<?, ?> build, Launcher launcher, BuildListener listener)
+                 throws InterruptedException, IOException {
+            build.getWorkspace().child("junit.xml").copyFrom(getClass().getResource("junit-1-failure.xml"));
+            return true;
+         }
+      });
+      QueueTaskFuture<FreeStyleBuild> future = project.scheduleBuild2(0);
+      try {
+         assertTrue(BlockingTestDataPublisher.started.await(30, TimeUnit.SECONDS));
+
+         final CountDownLatch locked = new CountDownLatch(1);
+         Thread reader = new Thread() {
+            public void run() {
+               synchronized (BlockingTestDataPublisher.build) {
+                  locked.countDown();
+               }
+            }
+         };
+         reader.start();
+         assertTrue("a reader was blocked while publishing", locked.await(10, TimeUnit.SECONDS));
+      } finally {
+         BlockingTestDataPublisher.proceed.countDown();
+      }
+      FreeStyleBuild build = future.get();
+      assertNotNull(build.getAction(TestResultAction.class));
+      assertEquals(Result.UNSTABLE, build.getResult());
+   }
+
    @Test
    public void testResultIsOnlyMarkedAsLatestIfLatest() throws Exception {
       FreeStyleBuild build = runBuildWithJUnitResult("junit-1-failure.xml");
@@ -299,6 +724,16 @@ public class QuarantineCoreTest {
       assertTrue(build.getResult() == Result.SUCCESS);
    }
 
+   private static boolean containsTest(List<QuarantinedTest> tests, CaseResult result) {
+      for (QuarantinedTest test : tests) {
+         if (test.getJobName().equals(result.getOwner().getParent().getFullName())
+                 && test.getTestName().equals(result.getFullName())) {
+            return true;
+         }
+      }
+      return false;
+   }
+
    @Test
    public void testQuarantinedTestsAreInReport() throws Exception {
       TestResult tr = getResultsFromJUnitResult("junit-1-failure.xml");
@@ -309,8 +744,148 @@ public class QuarantineCoreTest {
       QuarantinedTestsReport report = new QuarantinedTestsReport();
 
       assertEquals(2, report.getQuarantinedTests().size());
-      assertTrue(report.getQuarantinedTests().contains(tr.getSuite("SuiteA").getCase("TestB")));
-      assertTrue(report.getQuarantinedTests().contains(tr.getSuite("SuiteB").getCase("TestA")));
+      assertTrue(containsTest(report.getQuarantinedTests(), tr.getSuite("SuiteA").getCase("TestB")));
+      assertTrue(containsTest(report.getQuarantinedTests(), tr.getSuite("SuiteB").getCase("TestA")));
+   }
+
+   @Test
+   public void testReportIndexIsUpdatedIncrementally() throws Exception {
+      QuarantineReportIndex index = QuarantineReportIndex.get();
+      long version = index.getVersion();
+
+      // known as soon as the build completes, without looking the job up
+      TestResult tr = getResultsFromJUnitResult("junit-1-failure.xml");
+      assertTrue(index.isLoaded(project));
+      assertTrue(index.getVersion() > version);
+      assertTrue(index.getQuarantinedTests(project).isEmpty());
+
+      version = index.getVersion();
+      QuarantineTestAction action = tr.getSuite("SuiteA").getCase("TestB").getTestAction(QuarantineTestAction.class);
+      action.quarantine("user1", "reason");
+      assertTrue(index.getVersion() > version);
+      assertEquals(1, index.getQuarantinedTests(project).size());
+      assertEquals("reason", index.getQuarantinedTests(project).get(0).getReason());
+
+      version = index.getVersion();
+      action.release();
+      assertTrue(index.getVersion() > version);
+      assertTrue(index.getQuarantinedTests(project).isEmpty());
+
+      // a quarantine change in an older build doesn't touch the index
+      getResultsFromJUnitResult("junit-1-failure.xml");
+      version = index.getVersion();
+      action.quarantine("user1", "reason");
+      assertEquals(version, index.getVersion());
+
+      // nor does a build of a job that doesn't use quarantine
+      FreeStyleProject other = j.createFreeStyleProject("other");
+      j.buildAndAssertSuccess(other);
+      assertEquals(version, index.getVersion());
+      assertFalse(index.isLoaded(other));
+   }
+
+   @Test
+   public void testQuarantinedTestsInFoldersAreInReport() throws Exception {
+      MockFolder folder = j.createFolder("folder");
+      project = folder.createProject(FreeStyleProject.class, "y");
+      addQuarantinePublisher(project);
+      TestResult tr = getResultsFromJUnitResult("junit-1-failure.xml");
+
+      tr.getSuite("SuiteA").getCase("TestB").getTestAction(QuarantineTestAction.class).quarantine("user1", "reason");
+
+      QuarantinedTestsReport report = new QuarantinedTestsReport();
+      assertEquals(1, report.getQuarantinedTests().size());
+      assertTrue(containsTest(report.getQuarantinedTests(), tr.getSuite("SuiteA").getCase("TestB")));
+
+      folder.renameTo("renamed");
+      assertEquals(1, report.getQuarantinedTests().size());
+
+      folder.delete();
+      assertEquals(0, report.getQuarantinedTests().size());
+   }
+
+   @Test
+   public void testReportFallsBackToPreviousBuildWhenLastIsDeleted() throws Exception {
+      TestResult tr = getResultsFromJUnitResult("junit-1-failure.xml");
+      tr.getSuite("SuiteA").getCase("TestB").getTestAction(QuarantineTestAction.class).quarantine("user1", "reason");
+      FreeStyleBuild build = runBuildWithJUnitResult("junit-1-failure.xml");
+
+      QuarantinedTestsReport report = new QuarantinedTestsReport();
+      assertEquals(1, report.getQuarantinedTests().size());
+
+      build.delete();
+      assertEquals(1, report.getQuarantinedTests().size());
+   }
+
+   @Test
+   public void testReportLeavesOutJobsThatTakeTooLongToLookUp() throws Exception {
+      TestResult tr = getResultsFromJUnitResult("junit-1-failure.xml");
+      tr.getSuite("SuiteA").getCase("TestB").getTestAction(QuarantineTestAction.class).quarantine("user1", "reason");
+      FreeStyleBuild build = runBuildWithJUnitResult("junit-1-failure.xml");
+      QuarantinedTestsReport report = new QuarantinedTestsReport();
+
+      long timeout = QuarantineReportIndex.TIMEOUT;
+      QuarantineReportIndex.TIMEOUT = 100;
+      try {
+         // looking at the previous build waits for its quarantines
+         synchronized (QuarantineTestDataPublisher.Data.forBuild(tr.getRun())) {
+            build.delete();
+            QuarantinedTestsReport.Page page = report.getPage(0, QuarantinedTestsReport.PAGE_SIZE,
+                    QuarantinedTestsReport.Sort.JOB);
+            assertEquals(0, page.getTotal());
+            assertEquals(Arrays.asList(project.getFullDisplayName()), page.getIncompleteJobs());
+         }
+      } finally {
+         QuarantineReportIndex.TIMEOUT = timeout;
+      }
+
+      QuarantinedTestsReport.Page page = report.getPage(0, QuarantinedTestsReport.PAGE_SIZE,
+              QuarantinedTestsReport.Sort.JOB);
+      assertEquals(1, page.getTotal());
+      assertTrue(page.getIncompleteJobs().isEmpty());
+   }
+
+   @Test
+   public void testOnlyJobsWithQuarantinePublisherUseQuarantine() throws Exception {
+      assertTrue(QuarantineReportIndex.usesQuarantine(project));
+      assertFalse(QuarantineReportIndex.usesQuarantine(j.createFreeStyleProject("plain")));
+   }
+
+   @Test
+   public void testQuarantineReportIsPaged() throws Exception {
+      TestResult tr = getResultsFromJUnitResult("junit-1-failure.xml");
+
+      tr.getSuite("SuiteA").getCase("TestB").getTestAction(QuarantineTestAction.class).quarantine("user1", "reason");
+      tr.getSuite("SuiteB").getCase("TestA").getTestAction(QuarantineTestAction.class).quarantine("user1", "reason");
+
+      QuarantinedTestsReport report = new QuarantinedTestsReport();
+      QuarantinedTestsReport.Page page = report.getPage(0, 1, QuarantinedTestsReport.Sort.JOB);
+      assertEquals(2, page.getTotal());
+      assertEquals(1, page.getTests().size());
+      assertEquals(tr.getSuite("SuiteA").getCase("TestB").getFullName(), page.getTests().get(0).getTestName());
+      assertTrue(page.hasMore());
+
+      page = report.getPage(page.getNextOffset(), 1, QuarantinedTestsReport.Sort.JOB);
+      assertEquals(tr.getSuite("SuiteB").getCase("TestA").getFullName(), page.getTests().get(0).getTestName());
+      assertFalse(page.hasMore());
+   }
+
+   @Test
+   public void testQuarantineReportPagesFollowTheSortOrder() throws Exception {
+      TestResult tr = getResultsFromJUnitResult("junit-1-failure.xml");
+      tr.getSuite("SuiteA").getCase("TestB").getTestAction(QuarantineTestAction.class).quarantine("user1", "reason");
+      tr.getSuite("SuiteB").getCase("TestB").getTestAction(QuarantineTestAction.class).quarantine("user2", "reason");
+      tr.getSuite("SuiteA").getCase("TestA").getTestAction(QuarantineTestAction.class).quarantine("user1", "reason");
+
+      QuarantinedTestsReport report = new QuarantinedTestsReport();
+      for (QuarantinedTestsReport.Sort sort : QuarantinedTestsReport.Sort.values()) {
+         List<QuarantinedTest> all = report.getPage(0, 10, sort).getTests();
+         assertEquals(3, all.size());
+         for (int offset = 0; offset < all.size(); offset++) {
+            QuarantinedTestsReport.Page page = report.getPage(offset, 1, sort);
+            assertEquals(all.get(offset).getTestName(), page.getTests().get(0).getTestName());
+         }
+      }
    }
 
    @Test
@@ -319,19 +894,19 @@ public class QuarantineCoreTest {
       tr.getSuite("SuiteA").getCase("TestB").getTestAction(QuarantineTestAction.class).quarantine("user1", "reason");
 
       QuarantinedTestsReport report = new QuarantinedTestsReport();
-      assertEquals(1, report.getNumberOfSuccessivePasses(report.getQuarantinedTests().get(0)));
+      assertEquals(1, report.getQuarantinedTests().get(0).getPassStreak());
 
       runBuildWithJUnitResult("junit-no-failure.xml");
       report = new QuarantinedTestsReport();
-      assertEquals(2, report.getNumberOfSuccessivePasses(report.getQuarantinedTests().get(0)));
+      assertEquals(2, report.getQuarantinedTests().get(0).getPassStreak());
 
       runBuildWithJUnitResult("junit-1-failure.xml");
       report = new QuarantinedTestsReport();
-      assertEquals(0, report.getNumberOfSuccessivePasses(report.getQuarantinedTests().get(0)));
+      assertEquals(0, report.getQuarantinedTests().get(0).getPassStreak());
 
       runBuildWithJUnitResult("junit-no-failure.xml");
       report = new QuarantinedTestsReport();
-      assertEquals(1, report.getNumberOfSuccessivePasses(report.getQuarantinedTests().get(0)));
+      assertEquals(1, report.getQuarantinedTests().get(0).getPassStreak());
    }
 
    @Test
@@ -342,6 +917,7 @@ public class QuarantineCoreTest {
 
       getResultsFromJUnitResult("junit-1-failure.xml");
 
+      assertTrue(MailQueue.get().waitUntilEmpty(10000));
       List<Message> inbox = Mailbox.get(user1Mail);
       assertEquals(1, inbox.size());
    }
@@ -354,6 +930,7 @@ public class QuarantineCoreTest {
 
       getResultsFromJUnitResult("junit-no-failure.xml");
 
+      assertTrue(MailQueue.get().waitUntilEmpty(10000));
       List<Message> inbox = Mailbox.get(user1Mail);
       assertEquals(0, inbox.size());
    }
@@ -367,8 +944,251 @@ public class QuarantineCoreTest {
 
       getResultsFromJUnitResult("junit-2-failures.xml");
 
+      assertTrue(MailQueue.get().waitUntilEmpty(10000));
       List<Message> inbox = Mailbox.get(user1Mail);
       assertEquals(1, inbox.size());
    }
 
+   @Test
+   public void testEmailsToSeveralUsersAreAllDelivered() throws Exception {
+      Mailbox.clearAll();
+      User.get("user2").addProperty(new Mailer.UserProperty(user2Mail));
+      TestResult tr = getResultsFromJUnitResult("junit-1-failure.xml");
+      tr.getSuite("SuiteA").getCase("TestB").getTestAction(QuarantineTestAction.class).quarantine("user1", "reason");
+      tr.getSuite("SuiteB").getCase("TestA").getTestAction(QuarantineTestAction.class).quarantine("user2", "reason");
+
+      getResultsFromJUnitResult("junit-2-failures.xml");
+
+      assertTrue(MailQueue.get().waitUntilEmpty(10000));
+      assertEquals(1, Mailbox.get(user1Mail).size());
+      assertEquals(1, Mailbox.get(user2Mail).size());
+   }
+
+   @Test
+   public void testDigestCollectsFailuresUntilSent() throws Exception {
+      Mailbox.clearAll();
+      QuarantineConfiguration.get().setDigest(true);
+      TestResult tr = getResultsFromJUnitResult("junit-1-failure.xml");
+      tr.getSuite("SuiteA").getCase("TestB").getTestAction(QuarantineTestAction.class).quarantine("user1", "reason");
+
+      getResultsFromJUnitResult("junit-1-failure.xml");
+      getResultsFromJUnitResult("junit-1-failure.xml");
+
+      assertTrue(MailQueue.get().waitUntilEmpty(10000));
+      assertEquals(0, Mailbox.get(user1Mail).size());
+      assertEquals(1, DigestBuffer.get().getPendingCount("user1"));
+
+      DigestBuffer.get().send(TaskListener.NULL);
+      assertTrue(MailQueue.get().waitUntilEmpty(10000));
+      assertEquals(1, Mailbox.get(user1Mail).size());
+      assertEquals(0, DigestBuffer.get().getPendingCount("user1"));
+   }
+
+   @Test
+   public void testDigestIsKeptUntilItIsQueued() throws Exception {
+      Mailbox.clearAll();
+      QuarantineConfiguration.get().setDigest(true);
+      TestResult tr = getResultsFromJUnitResult("junit-1-failure.xml");
+      tr.getSuite("SuiteA").getCase("TestB").getTestAction(QuarantineTestAction.class).quarantine("user1", "reason");
+      getResultsFromJUnitResult("junit-1-failure.xml");
+
+      int capacity = MailQueue.CAPACITY;
+      MailQueue.CAPACITY = 0;
+      try {
+         DigestBuffer.get().send(TaskListener.NULL);
+      } finally {
+         MailQueue.CAPACITY = capacity;
+      }
+      assertEquals(1, DigestBuffer.get().getPendingCount("user1"));
+
+      DigestBuffer.get().send(TaskListener.NULL);
+      assertTrue(MailQueue.get().waitUntilEmpty(10000));
+      assertEquals(1, Mailbox.get(user1Mail).size());
+      assertEquals(0, DigestBuffer.get().getPendingCount("user1"));
+   }
+
+   @Test
+   public void testRepeatedFailuresAreNotNotifiedWithinWindow() throws Exception {
+      Mailbox.clearAll();
+      QuarantineConfiguration.get().setNotificationWindow(1);
+      TestResult tr = getResultsFromJUnitResult("junit-1-failure.xml");
+      tr.getSuite("SuiteA").getCase("TestB").getTestAction(QuarantineTestAction.class).quarantine("user1", "reason");
+
+      getResultsFromJUnitResult("junit-1-failure.xml");
+      getResultsFromJUnitResult("junit-1-failure.xml");
+
+      assertTrue(MailQueue.get().waitUntilEmpty(10000));
+      assertEquals(1, Mailbox.get(user1Mail).size());
+   }
+
+   @Test
+   public void testEmailsPerHourAreLimited() throws Exception {
+      Mailbox.clearAll();
+      QuarantineConfiguration.get().setMaxEmailsPerHour(1);
+      TestResult tr = getResultsFromJUnitResult("junit-1-failure.xml");
+      tr.getSuite("SuiteA").getCase("TestB").getTestAction(QuarantineTestAction.class).quarantine("user1", "reason");
+
+      getResultsFromJUnitResult("junit-1-failure.xml");
+      assertTrue(MailQueue.get().waitUntilEmpty(10000));
+      assertEquals(1, Mailbox.get(user1Mail).size());
+
+      getResultsFromJUnitResult("junit-1-failure.xml");
+      assertTrue(MailQueue.get().waitUntilEmpty(10000));
+      assertEquals(1, Mailbox.get(user1Mail).size());
+   }
+
+   @Test
+   public void testDroppedEmailIsNotRecordedAsNotified() throws Exception {
+      Mailbox.clearAll();
+      QuarantineConfiguration.get().setNotificationWindow(1);
+      TestResult tr = getResultsFromJUnitResult("junit-1-failure.xml");
+      tr.getSuite("SuiteA").getCase("TestB").getTestAction(QuarantineTestAction.class).quarantine("user1", "reason");
+
+      int capacity = MailQueue.CAPACITY;
+      MailQueue.CAPACITY = 0;
+      try {
+         getResultsFromJUnitResult("junit-1-failure.xml");
+      } finally {
+         MailQueue.CAPACITY = capacity;
+      }
+      getResultsFromJUnitResult("junit-1-failure.xml");
+
+      assertTrue(MailQueue.get().waitUntilEmpty(10000));
+      assertEquals(1, Mailbox.get(user1Mail).size());
+   }
+
+   @Test
+   public void testFailedEmailIsRetried() throws Exception {
+      Mailbox.clearAll();
+      long retryDelay = MailQueue.RETRY_DELAY;
+      MailQueue.RETRY_DELAY = 100;
+      try {
+         Mailbox.get(user1Mail).setError(true);
+         MailQueue queue = MailQueue.get();
+         queue.addAll(Arrays.asList(new MailQueue.PendingMail(user1Mail, "subject", "content")));
+         long deadline = System.currentTimeMillis() + 10000;
+         while (queue.getPending().get(0).getAttempts() == 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+         }
+         Mailbox.get(user1Mail).setError(false);
+
+         assertTrue(queue.waitUntilEmpty(10000));
+         assertEquals(1, Mailbox.get(user1Mail).size());
+      } finally {
+         MailQueue.RETRY_DELAY = retryDelay;
+      }
+   }
+
+   @Test
+   public void testFailingEmailIsGivenUpOn() throws Exception {
+      Mailbox.clearAll();
+      long retryDelay = MailQueue.RETRY_DELAY;
+      int maxAttempts = MailQueue.MAX_ATTEMPTS;
+      MailQueue.RETRY_DELAY = 10;
+      MailQueue.MAX_ATTEMPTS = 3;
+      try {
+         Mailbox.get(user1Mail).setError(true);
+         MailQueue queue = MailQueue.get();
+         MailQueue.PendingMail mail = new MailQueue.PendingMail(user1Mail, "subject", "content");
+         queue.addAll(Arrays.asList(mail));
+
+         // retried with 10ms and 20ms in between
+         assertTrue(queue.waitUntilEmpty(10000));
+         assertEquals(3, mail.getAttempts());
+         assertEquals(0, Mailbox.get(user1Mail).size());
+      } finally {
+         Mailbox.get(user1Mail).setError(false);
+         MailQueue.RETRY_DELAY = retryDelay;
+         MailQueue.MAX_ATTEMPTS = maxAttempts;
+      }
+   }
+
+   @Test
+   public void testEmailThatCannotBeSentDoesNotHoldUpTheOthers() throws Exception {
+      Mailbox.clearAll();
+      int maxAttempts = MailQueue.MAX_ATTEMPTS;
+      MailQueue.MAX_ATTEMPTS = 1;
+      try {
+         // without an address, sending fails with a runtime exception
+         MailQueue queue = MailQueue.get();
+         queue.addAll(Arrays.asList(new MailQueue.PendingMail(null, "subject", "content"),
+                 new MailQueue.PendingMail(user1Mail, "subject", "content")));
+
+         assertTrue(queue.waitUntilEmpty(10000));
+         assertEquals(1, Mailbox.get(user1Mail).size());
+      } finally {
+         MailQueue.MAX_ATTEMPTS = maxAttempts;
+      }
+   }
+
+   @Test
+   public void testUserDetailsAreCachedUntilAUserIsSaved() throws Exception {
+      UserDetailsCache.invalidate();
+      User user = User.get("user1");
+      assertEquals("user1", UserDetailsCache.getDisplayName("user1"));
+      assertEquals(user1Mail, UserDetailsCache.getEmailAddress("user1"));
+
+      user.setFullName("User One");
+      assertEquals("user1", UserDetailsCache.getDisplayName("user1"));
+
+      user.save();
+      assertEquals("User One", UserDetailsCache.getDisplayName("user1"));
+
+      // saves the user as well
+      user.addProperty(new Mailer.UserProperty(user2Mail));
+      assertEquals(user2Mail, UserDetailsCache.getEmailAddress("user1"));
+   }
+
+   @Test
+   public void testEmailTemplateIsCompiledOnce() throws Exception {
+      assertSame(MailNotifier.getTemplate(MailNotifier.TEMPLATE), MailNotifier.getTemplate(MailNotifier.TEMPLATE));
+   }
+
+   /**
+    * Compares rendering an email with the cached template to compiling the
+    * template, which each email paid for before. Only run when asked for with
+    * -Dquarantine.benchmark=true, as the timings depend on the machine.
+    */
+   @Test
+   public void testRenderingAnEmailBenchmark() throws Exception {
+      assumeTrue(Boolean.getBoolean("quarantine.benchmark"));
+      TestResult tr = getResultsFromJUnitResult("junit-1-failure.xml");
+      CaseResult result = tr.getSuite("SuiteA").getCase("TestB");
+      QuarantineTestAction action = result.getTestAction(QuarantineTestAction.class);
+      action.quarantine("user1", "reason");
+      Map<String, Object> variables = new HashMap<String, Object>();
+      variables.put("user", "user1");
+      variables.put("results", Arrays.asList(new ResultActionPair(result, action)));
+      MailNotifier notifier = new MailNotifier(TaskListener.NULL);
+      int emails = 50;
+
+      // warm up both, so neither pays for loading classes
+      assertNotNull(notifier.renderEmail(MailNotifier.TEMPLATE, variables));
+      compileTemplate();
+
+      long start = System.nanoTime();
+      for (int i = 0; i < emails; i++) {
+         notifier.renderEmail(MailNotifier.TEMPLATE, variables);
+      }
+      long render = System.nanoTime() - start;
+
+      start = System.nanoTime();
+      for (int i = 0; i < emails; i++) {
+         compileTemplate();
+      }
+      long compile = System.nanoTime() - start;
+
+      System.out.println("rendering an email took " + TimeUnit.NANOSECONDS.toMicros(render / emails)
+              + "us, compiling the template took " + TimeUnit.NANOSECONDS.toMicros(compile / emails) + "us");
+   }
+
+   private static void compileTemplate() throws Exception {
+      InputStream template = MailNotifier.class.getResourceAsStream(MailNotifier.TEMPLATE);
+      try {
+         assertNotNull(new JellyContext().compileScript(new InputSource(template)));
+      } finally {
+         template.close();
+      }
+   }
+
 }
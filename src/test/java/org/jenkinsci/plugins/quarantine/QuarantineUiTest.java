@@ -1,5 +1,8 @@
 package org.jenkinsci.plugins.quarantine;
 
+import com.gargoylesoftware.htmlunit.HttpMethod;
+import com.gargoylesoftware.htmlunit.WebRequest;
+import com.gargoylesoftware.htmlunit.WebResponse;
 import com.gargoylesoftware.htmlunit.html.*;
 import hudson.model.FreeStyleBuild;
 import hudson.tasks.junit.TestResult;
@@ -7,6 +10,8 @@ import hudson.tasks.junit.TestResultAction;
 import hudson.tasks.junit.CaseResult;
 import hudson.model.Descriptor;
 import hudson.model.FreeStyleProject;
+import hudson.model.ListView;
+import hudson.model.User;
 import hudson.security.FullControlOnceLoggedInAuthorizationStrategy;
 import hudson.tasks.junit.TestDataPublisher;
 import hudson.util.DescribableList;
@@ -22,7 +27,9 @@ import hudson.model.BuildListener;
 import hudson.model.AbstractBuild;
 
 import java.io.IOException;
+import java.net.URL;
 
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertTrue;
@@ -109,6 +116,78 @@ public class QuarantineUiTest {
       assertNotNull(page);
    }
 
+   @Test
+   public void testQuarantineExportIsOnlySentWhenChanged() throws Exception {
+      TestResult tr = getResultsFromJUnitResult("junit-1-failure.xml");
+      tr.getSuite("SuiteA").getCase("TestB").getTestAction(QuarantineTestAction.class).quarantine("user1", "reason");
+
+      JenkinsRule.WebClient wc = j.createWebClient();
+      WebResponse response = wc.goTo("quarantine/json", "application/json").getWebResponse();
+      assertTrue(response.getContentAsString().contains("\"test\":\"SuiteA.TestB\""));
+      String etag = response.getResponseHeaderValue("ETag");
+      assertNotNull(etag);
+
+      WebRequest request = new WebRequest(new URL(j.getURL(), "quarantine/json"));
+      request.setAdditionalHeader("If-None-Match", etag);
+      assertEquals(304, wc.loadWebResponse(request).getStatusCode());
+
+      // a build that changes nothing keeps the tag
+      runBuildWithJUnitResult("junit-1-failure.xml");
+      assertEquals(304, wc.loadWebResponse(request).getStatusCode());
+
+      tr.getSuite("SuiteB").getCase("TestA").getTestAction(QuarantineTestAction.class).quarantine("user1", "reason");
+      response = wc.loadWebResponse(request);
+      assertEquals(200, response.getStatusCode());
+      assertTrue(response.getContentAsString().contains("\"test\":\"SuiteB.TestA\""));
+
+      // the export looks the same, but the report shows the new name
+      request.setAdditionalHeader("If-None-Match", response.getResponseHeaderValue("ETag"));
+      User user = User.get("user1");
+      user.setFullName("User One");
+      user.save();
+      assertEquals(200, wc.loadWebResponse(request).getStatusCode());
+
+      String csv = wc.goTo("quarantine/csv", "text/csv").getWebResponse().getContentAsString();
+      assertTrue(csv.startsWith("job,test,status,"));
+      assertTrue(csv.contains("x,SuiteA.TestB,"));
+   }
+
+   @Test
+   public void testMoreRowsAreOnlyLoadedFromTheView() throws Exception {
+      TestResult tr = getResultsFromJUnitResult("junit-1-failure.xml");
+      tr.getSuite("SuiteA").getCase("TestB").getTestAction(QuarantineTestAction.class).quarantine("user1", "reason");
+      ListView view = new ListView("other");
+      j.jenkins.addView(view);
+
+      JenkinsRule.WebClient wc = j.createWebClient();
+      WebRequest request = new WebRequest(new URL(j.getURL(), "quarantine/rows?view=other&offset=0"));
+      WebResponse response = wc.loadWebResponse(request);
+      assertEquals(200, response.getStatusCode());
+      assertFalse(response.getContentAsString().contains("SuiteA.TestB"));
+
+      view.add(project);
+      assertTrue(wc.loadWebResponse(request).getContentAsString().contains("SuiteA.TestB"));
+   }
+
+   @Test
+   public void testBulkChangeNeedsTestsOrPrefix() throws Exception {
+      runBuildWithJUnitResult("junit-1-failure.xml");
+      JenkinsRule.WebClient wc = j.createWebClient();
+      wc.login("user1", "user1");
+
+      WebRequest request = new WebRequest(new URL(j.getURL(), "quarantine/bulk?job=x&reason=flaky"), HttpMethod.POST);
+      assertEquals(400, wc.loadWebResponse(request).getStatusCode());
+
+      request = new WebRequest(new URL(j.getURL(), "quarantine/bulk?reason=flaky&prefix=SuiteA."), HttpMethod.POST);
+      assertEquals(400, wc.loadWebResponse(request).getStatusCode());
+
+      request = new WebRequest(new URL(j.getURL(), "quarantine/bulk?job=x&reason=flaky&prefix=SuiteA."),
+              HttpMethod.POST);
+      WebResponse response = wc.loadWebResponse(request);
+      assertEquals(200, response.getStatusCode());
+      assertTrue(response.getContentAsString().contains("\"SuiteA.TestB\":\"quarantined\""));
+   }
+
    private HtmlPage whenNavigatingToTestCase(CaseResult testCase, boolean authenticate) throws Exception {
       JenkinsRule.WebClient wc = j.createWebClient();
       if (authenticate) {